@@ -16,6 +16,9 @@
 package com.adlitteram.filenotifier;
 
 import com.adlitteram.filenotifier.files.DbManager;
+import com.adlitteram.filenotifier.files.FileWatcher;
+import com.adlitteram.filenotifier.files.IoBudget;
+import com.adlitteram.filenotifier.files.WatchBudget;
 import com.adlitteram.filenotifier.log.XLog;
 import com.adlitteram.filenotifier.xml.ChannelsReader;
 import java.io.File;
@@ -64,8 +67,15 @@ public class FileNotifier {
         Scanner scanner = new Scanner(System.in);
         String str;
         do {
-            System.out.print("FileNotifier - Enter 'exit' to quit : ");
+            System.out.print("FileNotifier - Enter 'status' to show the I/O and watch budgets and the watch intakes or 'exit' to quit : ");
             str = scanner.nextLine();
+            if (str.equals("status")) {
+                System.out.println(IoBudget.getInstance().getStatus());
+                System.out.println(WatchBudget.getInstance().getStatus());
+                for (String status : FileWatcher.getRunningStatus()) {
+                    System.out.println(status);
+                }
+            }
         }
         while (!str.equals("exit"));
 
@@ -0,0 +1,93 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compacts a database in a background thread once its fragmentation exceeds
+ * the compact ratio of its config.
+ * <p>
+ * MapDB cannot compact while its maps are written or committed: the caller
+ * must not write the database until isRunning() returns false.
+ */
+public class BackgroundCompactor implements Runnable {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(BackgroundCompactor.class);
+
+    // The fragmentation is checked at most every 10 s
+    private static final long CHECK_INTERVAL = 10000;
+
+    private final DbManager dbManager;
+    private final String name;
+    private volatile Thread thread;
+    private long lastCheckTime;
+
+    public BackgroundCompactor(DbManager dbManager, String name) {
+        this.dbManager = dbManager;
+        this.name = name;
+        this.lastCheckTime = System.currentTimeMillis();
+    }
+
+    // Rate limited, so it can be called after each batch of updates
+    public boolean isDue() {
+        long time = System.currentTimeMillis();
+        if (isRunning() || time - lastCheckTime < CHECK_INTERVAL) {
+            return false;
+        }
+        lastCheckTime = time;
+        return dbManager.isFragmented();
+    }
+
+    public void start() {
+        if (!isRunning()) {
+            thread = new Thread(this, "BackgroundCompactor-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public boolean isRunning() {
+        Thread t = thread;
+        return t != null && t.isAlive();
+    }
+
+    @Override
+    public void run() {
+        long time = System.currentTimeMillis();
+        try {
+            dbManager.compact();
+            LOGGER.info(name + " - Database compacted in " + (System.currentTimeMillis() - time) + " ms");
+        }
+        catch (RuntimeException | Error ex) {
+            LOGGER.warn("BackgroundCompactor.run(): ", ex);
+        }
+    }
+
+    // Waits for the running compaction
+    public void close() {
+        Thread t = thread;
+        if (t != null) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
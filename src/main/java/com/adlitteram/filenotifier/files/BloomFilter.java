@@ -0,0 +1,126 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of the keys of a file map.
+ * <p>
+ * A key that it does not contain is surely not in the map, so the lookup of a
+ * new path does not read the store. It holds BITS_PER_KEY bits per expected
+ * key and sets HASHES bits per key, about 1% of false positives when the
+ * expected count is reached. The keys removed from the map stay in the filter
+ * until it is rebuilt. The bits are set atomically for the parallel walkers.
+ */
+public class BloomFilter {
+
+    private static final int VERSION = 1;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+    private static final long MIN_KEYS = 100000;
+
+    private final long expected;
+    private final long bitCount;
+    private final AtomicLongArray words;
+
+    public BloomFilter(long expected) {
+        this.expected = expected;
+        int count = (int) Math.min(Integer.MAX_VALUE, (expected * BITS_PER_KEY + 63) / 64);
+        this.words = new AtomicLongArray(count);
+        this.bitCount = count * 64L;
+    }
+
+    // A filter for a map of this count of keys, with room for it to double
+    public static BloomFilter create(long keyCount) {
+        return new BloomFilter(Math.max(MIN_KEYS, keyCount * 2));
+    }
+
+    public long getExpected() {
+        return expected;
+    }
+
+    public void add(String key) {
+        long hash = OffHeapCache.hash(key);
+        long h1 = hash & 0xffffffffL;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) % bitCount;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+    }
+
+    // Returns false if the key was never added
+    public boolean mightContain(String key) {
+        long hash = OffHeapCache.hash(key);
+        long h1 = hash & 0xffffffffL;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) % bitCount;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The key count of the map is saved to check that the file matches it
+    public void save(Path file, long keyCount) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 65536))) {
+            out.writeInt(VERSION);
+            out.writeLong(expected);
+            out.writeLong(keyCount);
+            for (int i = 0; i < words.length(); i++) {
+                out.writeLong(words.get(i));
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null if the file is missing or was not saved for this key count
+    public static BloomFilter load(Path file, long keyCount) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            BloomFilter filter = new BloomFilter(in.readLong());
+            if (in.readLong() != keyCount) {
+                return null;
+            }
+            for (int i = 0; i < filter.words.length(); i++) {
+                filter.words.set(i, in.readLong());
+            }
+            return filter;
+        }
+    }
+}
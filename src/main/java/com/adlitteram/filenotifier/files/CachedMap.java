@@ -0,0 +1,216 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A file map cached in front of its store.
+ * <p>
+ * The Long values read or written are kept in an OffHeapCache, the others
+ * (fingerprints) are only read from the store. The writes are held in memory
+ * and written to the store by flush(), which is called before each commit of
+ * the database and once MAX_PENDING writes are held. The iteration and the
+ * size flush the held writes first.
+ * <p>
+ * A value read from the store out of the lock is only cached if no write or
+ * flush happened meanwhile, checked with a version counter, so it cannot
+ * replace a newer value.
+ */
+public class CachedMap extends AbstractMap<String, Object> {
+
+    private static final int MAX_PENDING = 10000;
+    // A held removal
+    private static final Object REMOVED = new Object();
+
+    private final Map<String, Object> map;
+    private final OffHeapCache cache;
+    private final HashMap<String, Object> pending = new HashMap<>();
+    private final long[] cached = new long[1];
+    // Incremented by each write, removal and flush
+    private long version;
+
+    public CachedMap(Map<String, Object> map, long cacheBytes) {
+        this.map = map;
+        this.cache = new OffHeapCache(cacheBytes);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String k = (String) key;
+        long readVersion;
+        synchronized (this) {
+            Object value = pending.get(k);
+            if (value != null) {
+                return value == REMOVED ? null : value;
+            }
+            if (cache.get(k, cached)) {
+                return cached[0];
+            }
+            readVersion = version;
+        }
+
+        // The store is read out of the lock by the parallel walkers
+        Object value = map.get(k);
+        if (value instanceof Long) {
+            synchronized (this) {
+                if (version == readVersion) {
+                    cache.put(k, (Long) value);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object previous = get(key);
+        synchronized (this) {
+            hold(key, value);
+        }
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object previous = get(key);
+        if (previous != null) {
+            synchronized (this) {
+                hold((String) key, REMOVED);
+            }
+        }
+        return previous;
+    }
+
+    private void hold(String key, Object value) {
+        version++;
+        if (value instanceof Long) {
+            cache.put(key, (Long) value);
+        }
+        else {
+            cache.remove(key);
+        }
+        pending.put(key, value);
+        if (pending.size() >= MAX_PENDING) {
+            flush();
+        }
+    }
+
+    // Writes an entry known to be missing from the store without reading it
+    public synchronized void putNew(String key, Object value) {
+        hold(key, value);
+    }
+
+    // Writes the held writes to the store
+    public synchronized void flush() {
+        version++;
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                map.remove(entry.getKey());
+            }
+            else {
+                map.put(entry.getKey(), entry.getValue());
+            }
+        }
+        pending.clear();
+    }
+
+    @Override
+    public int size() {
+        flush();
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        flush();
+        return map.isEmpty();
+    }
+
+    @Override
+    public synchronized void clear() {
+        version++;
+        pending.clear();
+        cache.clear();
+        map.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        flush();
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+                return new Iterator<Map.Entry<String, Object>>() {
+
+                    private String key;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        Map.Entry<String, Object> entry = iterator.next();
+                        key = entry.getKey();
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        synchronized (CachedMap.this) {
+                            version++;
+                            cache.remove(key);
+                        }
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+
+    // The wrapped store map
+    public Map<String, Object> getMap() {
+        return map;
+    }
+
+    public synchronized String getStatus() {
+        long hits = cache.getHits();
+        long count = hits + cache.getMisses();
+        return cache.capacity() + " slots - hit rate: " + (count > 0 ? hits * 100 / count : 0) + "%";
+    }
+}
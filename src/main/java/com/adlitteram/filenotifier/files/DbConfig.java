@@ -0,0 +1,116 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+/**
+ * The storage options of a state database. The spooler and the watcher of a
+ * channel share the database, the first one opening it sets the options.
+ */
+public class DbConfig {
+
+    public static final DbConfig DEFAULT = new DbConfig();
+
+    public static final String MAPDB_STORE = "mapdb";
+    public static final String LOG_STORE = "log";
+
+    private boolean compactKeys = false;
+    private String store = MAPDB_STORE;
+    private double compactRatio = 0.5;
+    private boolean fingerprints = false;
+    private int renameMemory = 64;
+    private boolean outbox = false;
+    private int cacheSize = 0;
+    private boolean bloomFilter = false;
+
+    public boolean isCompactKeys() {
+        return compactKeys;
+    }
+
+    // The keys are stored as a parent directory id and a name
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public String getStore() {
+        return store;
+    }
+
+    // mapdb (default) or log
+    public void setStore(String store) {
+        this.store = store == null || store.isEmpty() ? MAPDB_STORE : store.toLowerCase();
+    }
+
+    public boolean isLogStore() {
+        return LOG_STORE.equals(store);
+    }
+
+    public double getCompactRatio() {
+        return compactRatio;
+    }
+
+    // The database is compacted when old records hold more than this part of it
+    public void setCompactRatio(double compactRatio) {
+        this.compactRatio = Math.max(0, Math.min(1, compactRatio));
+    }
+
+    public boolean isFingerprints() {
+        return fingerprints;
+    }
+
+    // The entries also store the size and the file key of the files so that
+    // the spooler can report the files moved while it was stopped as renames
+    public void setFingerprints(boolean fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    public int getRenameMemory() {
+        return renameMemory;
+    }
+
+    // The max size in MB of the new entries held back by the rename detection
+    public void setRenameMemory(int renameMemory) {
+        this.renameMemory = Math.max(0, renameMemory);
+    }
+
+    public boolean isOutbox() {
+        return outbox;
+    }
+
+    // The events are kept in an outbox next to the database until their
+    // processors acknowledge them
+    public void setOutbox(boolean outbox) {
+        this.outbox = outbox;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    // The size in MB of the off-heap cache of the file map, 0 to disable it
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = Math.max(0, cacheSize);
+    }
+
+    public boolean isBloomFilter() {
+        return bloomFilter;
+    }
+
+    // The keys of the file map are also held in a Bloom filter, so the lookups
+    // of the new paths do not read the store
+    public void setBloomFilter(boolean bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+}
@@ -19,11 +19,15 @@ import java.io.IOError;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,129 +35,427 @@ public class DbManager {
 
     private final Logger LOGGER = LoggerFactory.getLogger(DbManager.class);
 
-    public final static String NAME_KEY = "*";
+    // The role markers of the maps written before the generations
+    private final static String NAME_KEY = "*";
     private final static Long OLD_MAP = 0L;
     private final static Long CUR_MAP = 1L;
-    private final static HashMap<Path, DbManager> DB_MAP = new HashMap<>();
+    // The watcher keys are unified with the spooler ones from this format
+    private final static String KEY_FORMAT = "keyFormat";
+    private final static Long CANONICAL_KEYS = 1L;
+    // The databases are opened in the thread of their first caller, the other
+    // callers wait for it
+    private final static ConcurrentHashMap<Path, FutureTask<DbManager>> DB_MAP = new ConcurrentHashMap<>();
 
     private final Path dbPath;
-    private final Map<String, Long> oldMap;
-    private final Map<String, Long> curMap;
-    private DB db;
+    private final GenerationMap fileMap;
+    private final Map<String, long[]> dirMap;
+    private final Map<String, Object> meta;
+    private final SpoolCheckpoint checkpoint;
+    private final DbConfig config;
+    private StateStore store;
+    private EventOutbox outbox;
+    private CachedMap cachedMap;
 
-    private DbManager(Path dbPath) {
+    private DbManager(Path dbPath, DbConfig config) {
         LOGGER.info("Creating database: " + dbPath);
         this.dbPath = dbPath;
+        this.config = config;
+        long startTime = System.currentTimeMillis();
 
         try {
-            db = create();
+            store = create();
         }
         catch (IOError error) {
             LOGGER.warn("DbManager() : ", error);
             destroy();
-            db = create();
+            store = create();
         }
+        if (config.isOutbox()) {
+            try {
+                outbox = new EventOutbox(Paths.get(dbPath + ".outbox"));
+            }
+            catch (IOException ex) {
+                LOGGER.warn("DbManager() : the outbox is disabled: ", ex);
+            }
+        }
+        long openTime = System.currentTimeMillis();
+
+        PathKeyMap.Directories directories = null;
+        Map<String, Object> files = store.getMap("files");
+        if (config.isCompactKeys() || store.exists("fileKeys")) {
+            directories = new PathKeyMap.Directories(store.getMap("dirIds"), store.getMap("dirPaths"));
+            PathKeyMap<Object> fileKeys = new PathKeyMap<>(store.getMap("fileKeys"), directories);
+            if (config.isCompactKeys()) {
+                migrate(files, fileKeys);
+                files = fileKeys;
+            }
+            else {
+                migrate(fileKeys, files);
+                store.delete("fileKeys");
+            }
+        }
+        if (config.getCacheSize() > 0) {
+            try {
+                cachedMap = new CachedMap(files, config.getCacheSize() * 1024L * 1024L);
+            }
+            catch (OutOfMemoryError ex) {
+                LOGGER.warn(dbPath + " - The cache cannot be allocated, the database is read directly: " + ex.getMessage());
+            }
+        }
+        fileMap = new GenerationMap(cachedMap != null ? cachedMap : files);
+        dirMap = store.getMap("dirs");
+        meta = store.getMap("meta");
+        if (fileMap.size() == 0 && !store.exists("map1")) {
+            meta.put(KEY_FORMAT, CANONICAL_KEYS);
+        }
+
+        checkpoint = new SpoolCheckpoint(this, store.getMap("spool"), store.getMap("done"));
+        if (store.exists("map1")) {
+            upgrade();
+        }
+        if (directories != null && !config.isCompactKeys()) {
+            store.delete("dirIds");
+            store.delete("dirPaths");
+            directories = null;
+        }
+
+        // The next spool starts a new generation unless it resumes this one
+        boolean resume = checkpoint.isInterrupted();
+        if (resume) {
+            checkpoint.resume();
+            LOGGER.info(dbPath + " - Resuming interrupted spool after: " + checkpoint.getLastDir());
+        }
+        fileMap.setGeneration(checkpoint.getCurGeneration());
+        LOGGER.info(dbPath + " - oldGen: " + checkpoint.getOldGeneration() + " - curGen: " + checkpoint.getCurGeneration()
+                    + " - " + fileMap.size() + " entries");
+
+        if (directories != null && !resume) {
+            HashSet<Long> usedIds = new HashSet<>();
+            ((PathKeyMap<?>) files).collectDirectoryIds(usedIds);
+            int count = directories.retain(usedIds);
+            LOGGER.info(dbPath + " - " + directories.size() + " directories - " + count + " removed");
+        }
+
+        long prepareTime = System.currentTimeMillis();
+        boolean compacted = isFragmented();
+        if (compacted) {
+            LOGGER.info(dbPath + " - Compacting maps");
+            store.compact();
+        }
+        else {
+            store.commit();
+        }
+        if (config.isBloomFilter()) {
+            openFilter(compacted);
+        }
+
+        long readyTime = System.currentTimeMillis();
+        LOGGER.info(dbPath + " is ready in " + (readyTime - startTime) + " ms - open: " + (openTime - startTime)
+                    + " ms - prepare: " + (prepareTime - openTime) + " ms - commit: " + (readyTime - prepareTime) + " ms");
+    }
+
+    public static DbManager createManager(Path dbPath) {
+        return createManager(dbPath, DbConfig.DEFAULT);
+    }
+
+    // The config is only used by the first call for a database. The databases
+    // are opened in parallel, a caller only waits for the one it asks for.
+    public static DbManager createManager(Path dbPath, DbConfig config) {
+        FutureTask<DbManager> task = DB_MAP.get(dbPath);
+        if (task == null) {
+            FutureTask<DbManager> newTask = new FutureTask<>(() -> new DbManager(dbPath, config));
+            task = DB_MAP.putIfAbsent(dbPath, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return getManager(task);
+        }
+        catch (RuntimeException | Error ex) {
+            // The next call tries again
+            DB_MAP.remove(dbPath, task);
+            throw ex;
+        }
+    }
+
+    private static DbManager getManager(FutureTask<DbManager> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+                catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Moves the entries written by the watcher under a key relative to its
+    // root before the keys were unified, called by the spooler with its roots
+    public void migrateKeys(Collection<Path> rootPaths) {
+        if (CANONICAL_KEYS.equals(meta.get(KEY_FORMAT))) {
+            return;
+        }
+
+        RootFinder rootFinder = new RootFinder(rootPaths);
+        Map<String, Object> files = fileMap.getMap();
+        ArrayList<String> relativeKeys = new ArrayList<>();
+        for (String key : files.keySet()) {
+            if (rootFinder.find(key) == null) {
+                relativeKeys.add(key);
+            }
+        }
+
+        int moved = 0;
+        for (String relativeKey : relativeKeys) {
+            Object value = files.remove(relativeKey);
+            String root = findRoot(rootPaths, relativeKey);
+            if (value != null && root != null) {
+                // The spooler may have updated the entry since the watcher
+                String key = KeyCodec.toKey(root, relativeKey);
+                Object current = files.get(key);
+                if (current == null || GenerationMap.getTime(current) < GenerationMap.getTime(value)) {
+                    files.put(key, value);
+                }
+                moved++;
+            }
+        }
+        meta.put(KEY_FORMAT, CANONICAL_KEYS);
+        commit();
+        if (fileMap.getFilter() != null) {
+            fileMap.rebuildFilter();
+        }
+        LOGGER.info(dbPath + " - " + moved + " watcher keys migrated - " + (relativeKeys.size() - moved) + " removed");
+    }
+
+    // The root of a relative key is the one where it exists, if there are several
+    private String findRoot(Collection<Path> rootPaths, String relativeKey) {
+        if (rootPaths.size() == 1) {
+            return rootPaths.iterator().next().toString();
+        }
+        for (Path rootPath : rootPaths) {
+            if (Files.exists(rootPath.resolve(relativeKey))) {
+                return rootPath.toString();
+            }
+        }
+        return null;
+    }
+
+    // Moves the entries of a map stored with the other key format
+    private <V> void migrate(Map<String, V> from, Map<String, V> to) {
+        if (!from.isEmpty()) {
+            LOGGER.info(dbPath + " - Migrating " + from.size() + " keys");
+            to.clear();
+            to.putAll(from);
+            from.clear();
+        }
+    }
 
-        Map<String, Long> map1 = db.getHashMap("map1");
-        Map<String, Long> map2 = db.getHashMap("map2");
+    // Moves the entries of the two maps whose roles were swapped at each start.
+    // The current map of the last start has the OLD_MAP marker, the entries of
+    // the other one are kept on the old generation to resume an interrupted spool.
+    private void upgrade() {
+        Map<String, Long> map1 = store.getMap("map1");
+        Map<String, Long> map2 = store.getMap("map2");
         Long val1 = map1.get(NAME_KEY);
         Long val2 = map2.get(NAME_KEY);
-        LOGGER.info(dbPath + " - val1: " + val1 + " - val2: " + val2);
-        map1.remove(NAME_KEY);
-        map2.remove(NAME_KEY);
+        Map<String, Long> oldMap = Objects.equals(val1, CUR_MAP) ? map1 : map2;
+        Map<String, Long> curMap = oldMap == map1 ? map2 : map1;
 
-        if (Objects.equals(val1, OLD_MAP) && Objects.equals(val2, CUR_MAP)) {
-            LOGGER.info(dbPath + " - oldMap = map1 & curMap = map2");
-            oldMap = map1;
-            curMap = map2;
+        if ((Objects.equals(val1, OLD_MAP) && Objects.equals(val2, CUR_MAP))
+            || (Objects.equals(val1, CUR_MAP) && Objects.equals(val2, OLD_MAP))) {
+            LOGGER.info(dbPath + " - Upgrading " + curMap.size() + " + " + oldMap.size() + " entries to generations");
+            if (checkpoint.isInterrupted()) {
+                copy(oldMap, checkpoint.getOldGeneration());
+            }
+            copy(curMap, checkpoint.getCurGeneration());
         }
-        else if (Objects.equals(val1, CUR_MAP) && Objects.equals(val2, OLD_MAP)) {
-            LOGGER.info(dbPath + " - oldMap = map2 & curMap = map1");
-            oldMap = map2;
-            curMap = map1;
+        store.delete("map1");
+        if (store.exists("map2")) {
+            store.delete("map2");
         }
-        else {
-            LOGGER.info(dbPath + " - oldMap cleared");
-            oldMap = map1;
-            curMap = map2;
-            oldMap.clear();
+    }
+
+    private void copy(Map<String, Long> map, long generation) {
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            if (!NAME_KEY.equals(entry.getKey())) {
+                fileMap.getMap().put(entry.getKey(), GenerationMap.encode(entry.getValue(), generation));
+            }
         }
+    }
 
-        curMap.clear();
-        oldMap.put(NAME_KEY, CUR_MAP);
-        curMap.put(NAME_KEY, OLD_MAP);
+    private StateStore create() {
+        if (config.isLogStore()) {
+            return new LogStore(getLogPath());
+        }
+        return new MapDbStore(dbPath);
+    }
 
-        LOGGER.info(dbPath + " - Compacting maps");
-        db.commit();
-        db.compact();;
+    // The log store is a directory next to the MapDB files
+    private Path getLogPath() {
+        return Paths.get(dbPath + ".log");
+    }
 
-        LOGGER.info(dbPath + " is ready");
+    // The filter is saved next to the database on close
+    private Path getFilterPath() {
+        return Paths.get(dbPath + ".bloom");
     }
 
-    public static synchronized DbManager createManager(Path dbPath) {
-        DbManager dbManager = DB_MAP.get(dbPath);
-        if (dbManager == null) {
-            dbManager = new DbManager(dbPath);
-            DB_MAP.put(dbPath, dbManager);
+    // The saved filter is deleted once read: after a crash, it would miss the
+    // keys written since, so it is rebuilt from the map
+    private void openFilter(boolean compacted) {
+        long startTime = System.currentTimeMillis();
+        long count = fileMap.size();
+        BloomFilter filter = null;
+        try {
+            filter = compacted ? null : BloomFilter.load(getFilterPath(), count);
+            Files.deleteIfExists(getFilterPath());
+        }
+        catch (IOException ex) {
+            LOGGER.warn("DbManager.openFilter() : ", ex);
+        }
+
+        if (filter != null && count <= filter.getExpected()) {
+            fileMap.setFilter(filter);
+            LOGGER.info(dbPath + " - filter loaded in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        else {
+            fileMap.rebuildFilter();
+            LOGGER.info(dbPath + " - filter built in " + (System.currentTimeMillis() - startTime) + " ms");
         }
-        return dbManager;
     }
 
-    private DB create() {
-        return DBMaker.newFileDB(dbPath.toFile())
-                .closeOnJvmShutdown()
-                .make();
+    private void saveFilter() {
+        try {
+            fileMap.getFilter().save(getFilterPath(), fileMap.size());
+        }
+        catch (IOException ex) {
+            LOGGER.warn("DbManager.saveFilter() : ", ex);
+        }
     }
 
+    // The events of the committed state are written to the outbox first
     public void commit() {
-        db.commit();
+        flush();
+        if (outbox != null) {
+            outbox.sync();
+        }
+        store.commit();
     }
 
+    // Commits, the compaction of the log store runs in the background
     public void compact() {
-        // Always Commit Before compact
-        db.commit();
-        db.compact();
+        flush();
+        if (outbox != null) {
+            outbox.sync();
+        }
+        store.compact();
+        // The removed keys are dropped from the filter
+        if (fileMap.getFilter() != null) {
+            fileMap.rebuildFilter();
+        }
+    }
+
+    // Writes the entries held by the cache to the store
+    private void flush() {
+        if (cachedMap != null) {
+            cachedMap.flush();
+        }
+    }
+
+    public double getFragmentation() {
+        return store.getFragmentation();
+    }
+
+    public boolean isFragmented() {
+        return store.getFragmentation() > config.getCompactRatio();
     }
 
     public static void closeAll() {
-        for (DbManager dbManager : DB_MAP.values()) {
-            dbManager.close();
+        for (FutureTask<DbManager> task : DB_MAP.values()) {
+            try {
+                getManager(task).close();
+            }
+            catch (RuntimeException | Error ex) {
+                // Not opened
+            }
         }
     }
 
     public void close() {
         LOGGER.warn("DbManager.closing(): " + dbPath);
 
-        if (db != null) {
-            db.commit();
-            db.close();
+        if (cachedMap != null && store != null) {
+            // The store commits on close
+            cachedMap.flush();
+            LOGGER.info(dbPath + " - cache: " + cachedMap.getStatus());
         }
-        db = null;
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (store != null && fileMap != null && fileMap.getFilter() != null) {
+            saveFilter();
+        }
+        if (store != null) {
+            store.close();
+        }
+        store = null;
     }
 
-    public Map<String, Long> getOldMap() {
-        return oldMap;
+    public GenerationMap getFileMap() {
+        return fileMap;
     }
 
-    public Map<String, Long> getCurMap() {
-        return curMap;
+    // Null if the outbox is disabled
+    public EventOutbox getOutbox() {
+        return outbox;
+    }
+
+    public SpoolCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    // Directory path -> {last modified time, child count, generation,
+    // count of the subdirectories walked}
+    public Map<String, long[]> getDirMap() {
+        return dirMap;
+    }
+
+    // Removes the entries of the older generations once a spool is complete
+    public int removeStale() {
+        int count = fileMap.removeStale();
+        long generation = fileMap.getGeneration();
+        dirMap.values().removeIf(value -> value[2] != generation);
+        return count;
     }
 
     private void destroy() {
         close();
 
-        try {
-            Files.deleteIfExists(dbPath);
-        }
-        catch (IOException ex) {
-            LOGGER.warn("FileSpooler.clearDB(): ", ex);
+        if (config.isLogStore()) {
+            LogStore.destroy(getLogPath());
         }
-
-        try {
-            Files.deleteIfExists(dbPath.resolve(".p"));
-        }
-        catch (IOException ex) {
-            LOGGER.warn("FileSpooler.clearDB(): ", ex);
+        else {
+            MapDbStore.destroy(dbPath);
         }
     }
 }
@@ -0,0 +1,172 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListenerPool;
+import com.adlitteram.filenotifier.Channel;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Emits the DELETE events of the keys left on the old generation after a walk.
+ * <p>
+ * The keys are scanned once in path order (see PathComparator) and nothing is
+ * read from the file system: a deleted key is known to be a directory when the
+ * next key is one of its descendants or when it is in the directory table of
+ * the last spool. The keys below an excluded directory or the max depth are
+ * not reported as they have not been walked.
+ * <p>
+ * With a file map, a key is removed from it once its DELETE is sent, so a scan
+ * resumed after an interruption does not send it again, and the stale keys
+ * not reported are removed without event. A key written again by the watcher
+ * meanwhile is not deleted.
+ */
+public class DeleteScanner {
+
+    private final Channel channel;
+    private final ChangeListenerPool<Object> fileListeners;
+    private final RootFinder rootFinder;
+    private final PathFilter filter;
+    private Map<String, long[]> dirMap;
+    private GenerationMap fileMap;
+    private String excludedDir;
+    private volatile boolean interrupted = false;
+
+    public DeleteScanner(Channel channel, ChangeListenerPool<Object> fileListeners, Collection<Path> rootPaths, PathFilter filter) {
+        this.channel = channel;
+        this.fileListeners = fileListeners;
+        this.filter = filter;
+        this.rootFinder = new RootFinder(rootPaths);
+    }
+
+    public void setDirMap(Map<String, long[]> dirMap) {
+        this.dirMap = dirMap;
+    }
+
+    public void setFileMap(GenerationMap fileMap) {
+        this.fileMap = fileMap;
+    }
+
+    // Keys must be sorted with PathComparator, as the ones of an ExternalSorter
+    public void scan(ExternalSorter.Cursor sortedKeys) throws IOException {
+        try {
+            scan(new KeyIterator(sortedKeys));
+        }
+        catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // Keys must be sorted with PathComparator
+    public void scan(Iterator<String> sortedKeys) {
+        String key = sortedKeys.hasNext() ? sortedKeys.next() : null;
+        while (key != null && !interrupted) {
+            String next = sortedKeys.hasNext() ? sortedKeys.next() : null;
+            delete(key, next != null && PathComparator.isAncestor(key, next));
+            key = next;
+        }
+    }
+
+    private void delete(String key, boolean hasChildren) {
+        if (excludedDir != null && PathComparator.isAncestor(excludedDir, key)) {
+            skip(key);
+            return;
+        }
+
+        String name = PathComparator.getName(key);
+        if (!filter.accept(name, true) || (!filter.accept(name, false) && !isDirectory(key, hasChildren))) {
+            skip(key);
+            return;
+        }
+
+        String r = rootFinder.find(key);
+        if (r == null) {
+            skip(key);
+        }
+        else {
+            String p = KeyCodec.relativize(r, key);
+            if (filter.hasDirectoryRules() && !filter.acceptRelative(p, isDirectory(key, hasChildren))) {
+                excludedDir = key;
+                skip(key);
+                return;
+            }
+            if (fileMap != null) {
+                Object value = fileMap.get(key);
+                if (value == null || fileMap.isCurrent(value)) {
+                    return;
+                }
+            }
+            fileListeners.firechange(new FileEvent(channel, r, p, FileEvent.Type.DELETE));
+            if (fileMap != null) {
+                fileMap.remove(key);
+            }
+        }
+    }
+
+    // A stale key which is not reported is removed without event
+    private void skip(String key) {
+        if (fileMap != null) {
+            Object value = fileMap.get(key);
+            if (value != null && !fileMap.isCurrent(value)) {
+                fileMap.remove(key);
+            }
+        }
+    }
+
+    private boolean isDirectory(String key, boolean hasChildren) {
+        return hasChildren || (dirMap != null && dirMap.containsKey(key));
+    }
+
+    public void interrupt() {
+        interrupted = true;
+    }
+
+    private static class KeyIterator implements Iterator<String> {
+
+        private final ExternalSorter.Cursor cursor;
+        private boolean hasNext;
+
+        KeyIterator(ExternalSorter.Cursor cursor) throws IOException {
+            this.cursor = cursor;
+            this.hasNext = cursor.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            String key = cursor.getKey();
+            try {
+                hasNext = cursor.next();
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return key;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Receives the directories walked by a spool, so a watch backend can register
+ * them without walking the tree again.
+ */
+public interface DirectoryListener {
+
+    // Called concurrently by the walkers for each directory whose entries are
+    // accepted, the directories at the max depth are not reported
+    void visited(Path root, Path dir, BasicFileAttributes attrs);
+
+    // Called once the walk of a root ends, complete if all its directories
+    // have been reported
+    void walked(Path root, boolean complete);
+}
@@ -0,0 +1,389 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListener;
+import com.adlitteram.filenotifier.Channel;
+import com.adlitteram.filenotifier.targets.FileEventProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent outbox of the file events of a database.
+ * <p>
+ * The spooler and the watcher append their events to segment files before
+ * the listeners receive them, each event getting a sequence number. The
+ * outbox is written to disk before each commit of the database, so the
+ * events of a committed state are never lost. A consumer acknowledges the
+ * events once its processor has processed them, and at the next start it
+ * receives again the events it has not acknowledged. The segments whose
+ * events are acknowledged by all the consumers are deleted.
+ * <p>
+ * Segment record: int length, int CRC32, payload. Payload: long seq, byte
+ * type, root, path, then the rename path or null.
+ */
+public class EventOutbox implements ChangeListener<Object> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventOutbox.class);
+
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    // seq, type, rename flag and three modified UTF-8 strings
+    private static final int MAX_RECORD = 8 + 1 + 1 + 3 * (2 + 65535);
+    private static final String SEGMENT_EXT = ".seg";
+    private static final String ACKS_FILE = "acks";
+    private static final String TEMP_EXT = ".tmp";
+    private static final FileEvent.Type[] TYPES = FileEvent.Type.values();
+
+    private final Path dir;
+    // First seq -> segment
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final HashMap<String, Long> acks = new HashMap<>();
+    private final HashSet<String> consumers = new HashSet<>();
+    private final HashSet<String> rejected = new HashSet<>();
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    private long segmentLength;
+    private long nextSeq = 1;
+    private boolean dirty;
+    private boolean failed;
+
+    public EventOutbox(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path file : ds) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_EXT)) {
+                    Files.delete(file);
+                }
+                else if (name.endsWith(SEGMENT_EXT)) {
+                    segments.put(Long.parseLong(name.substring(0, name.indexOf('.')), 16), file);
+                }
+            }
+        }
+        readAcks();
+
+        // The last segment may end with a torn record, the next seq follows the last valid one
+        if (!segments.isEmpty()) {
+            nextSeq = Math.max(readLastSeq(segments.lastEntry().getValue()) + 1, segments.lastKey());
+        }
+        for (Long seq : acks.values()) {
+            nextSeq = Math.max(nextSeq, seq + 1);
+        }
+        LOGGER.info(dir + " - " + segments.size() + " segments - next event: " + nextSeq);
+    }
+
+    private void readAcks() throws IOException {
+        Path file = dir.resolve(ACKS_FILE);
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("Corrupted acks: " + file);
+                }
+                for (int i = 0; i < count; i++) {
+                    acks.put(in.readUTF(), in.readLong());
+                }
+            }
+        }
+    }
+
+    private void writeAcks() throws IOException {
+        Path temp = dir.resolve(ACKS_FILE + TEMP_EXT);
+        try (DataOutputStream ao = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            ao.writeInt(acks.size());
+            for (Map.Entry<String, Long> entry : acks.entrySet()) {
+                ao.writeUTF(entry.getKey());
+                ao.writeLong(entry.getValue());
+            }
+        }
+        Files.move(temp, dir.resolve(ACKS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long readLastSeq(Path segment) throws IOException {
+        long seq = 0;
+        long remaining = Files.size(segment);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 65536))) {
+            byte[] payload;
+            while ((payload = readRecord(in, remaining)) != null) {
+                remaining -= payload.length + 8;
+                seq = new DataInputStream(new ByteArrayInputStream(payload)).readLong();
+            }
+        }
+        return seq;
+    }
+
+    // Returns null at the end of the segment or on a torn record, remaining
+    // is the count of bytes left in the segment before the record
+    private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0 || length > MAX_RECORD || length > remaining - 8) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload);
+            return (int) crc32.getValue() == crc ? payload : null;
+        }
+        catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    // Registers a consumer, a new one starts with the next event
+    public synchronized void register(String consumerId) {
+        consumers.add(consumerId);
+        if (!acks.containsKey(consumerId)) {
+            acks.put(consumerId, nextSeq - 1);
+            try {
+                writeAcks();
+            }
+            catch (IOException ex) {
+                LOGGER.warn("EventOutbox.register(): ", ex);
+            }
+        }
+    }
+
+    // Sends the events not acknowledged by the consumer to its processor by
+    // batches of maxsize, stops on the first batch not processed
+    public void redeliver(String consumerId, Channel channel, FileEventProcessor processor, int maxsize) {
+        register(consumerId);
+        long ack;
+        ArrayList<Path> files;
+        synchronized (this) {
+            ack = acks.get(consumerId);
+            files = new ArrayList<>(segments.values());
+        }
+
+        int batchSize = maxsize > 0 ? maxsize : Integer.MAX_VALUE;
+        ArrayList<FileEvent> list = new ArrayList<>();
+        long count = 0;
+        try {
+            for (Path file : files) {
+                long remaining = Files.size(file);
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+                    byte[] payload;
+                    while ((payload = readRecord(in, remaining)) != null) {
+                        remaining -= payload.length + 8;
+                        FileEvent event = decode(channel, payload);
+                        if (event.getSeq() <= ack) {
+                            continue;
+                        }
+                        list.add(event);
+                        if (list.size() >= batchSize) {
+                            if (!process(consumerId, processor, list)) {
+                                return;
+                            }
+                            count += list.size();
+                            list = new ArrayList<>();
+                        }
+                    }
+                }
+            }
+            if (!list.isEmpty() && process(consumerId, processor, list)) {
+                count += list.size();
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.warn("EventOutbox.redeliver(): ", ex);
+        }
+        finally {
+            if (count > 0) {
+                LOGGER.info(channel.getId() + " - " + count + " unacknowledged events redelivered to " + consumerId);
+            }
+        }
+    }
+
+    private boolean process(String consumerId, FileEventProcessor processor, ArrayList<FileEvent> list) {
+        boolean processed = processor.process(list);
+        processed(consumerId, list, processed);
+        return processed;
+    }
+
+    // Acknowledges a batch of events sent to a processor. Once a batch is not
+    // processed, the next ones are not acknowledged until the next start, so
+    // the events are redelivered in order.
+    public synchronized void processed(String consumerId, ArrayList<FileEvent> list, boolean processed) {
+        if (list.isEmpty() || rejected.contains(consumerId)) {
+            return;
+        }
+        if (!processed) {
+            LOGGER.warn(consumerId + " - " + list.size() + " events not processed, kept in the outbox");
+            rejected.add(consumerId);
+            return;
+        }
+        ack(consumerId, list.get(list.size() - 1).getSeq());
+    }
+
+    @Override
+    public void changed(Object event) {
+        if (event instanceof FileEvent) {
+            append((FileEvent) event);
+        }
+    }
+
+    // Called by the walkers and the watcher before the listeners receive the event
+    public synchronized void append(FileEvent event) {
+        event.setSeq(nextSeq++);
+        if (failed) {
+            return;
+        }
+
+        try {
+            if (out == null || segmentLength >= SEGMENT_SIZE) {
+                nextSegment(event.getSeq());
+            }
+            byte[] payload = encode(event);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            segmentLength += payload.length + 8;
+            dirty = true;
+        }
+        catch (IOException ex) {
+            // The events are still sent to the listeners
+            LOGGER.warn(dir + " - EventOutbox.append(), the outbox is disabled: ", ex);
+            failed = true;
+        }
+    }
+
+    private void nextSegment(long seq) throws IOException {
+        closeSegment();
+        Path file = dir.resolve(String.format("%016x", seq) + SEGMENT_EXT);
+        stream = new FileOutputStream(file.toFile());
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        segmentLength = 0;
+        segments.put(seq, file);
+    }
+
+    private void closeSegment() throws IOException {
+        if (out != null) {
+            sync();
+            out.close();
+            out = null;
+            stream = null;
+        }
+    }
+
+    // Writes the appended events to disk, called before each commit of the database
+    public synchronized void sync() {
+        if (!dirty || failed) {
+            return;
+        }
+        try {
+            out.flush();
+            stream.getChannel().force(false);
+            dirty = false;
+        }
+        catch (IOException ex) {
+            LOGGER.warn(dir + " - EventOutbox.sync(), the outbox is disabled: ", ex);
+            failed = true;
+        }
+    }
+
+    // The events up to seq have been processed by the consumer
+    private void ack(String consumerId, long seq) {
+        Long ack = acks.get(consumerId);
+        if (ack != null && seq <= ack) {
+            return;
+        }
+        acks.put(consumerId, seq);
+        try {
+            writeAcks();
+            deleteSegments();
+        }
+        catch (IOException ex) {
+            LOGGER.warn("EventOutbox.ack(): ", ex);
+        }
+    }
+
+    // Deletes the segments acknowledged by the registered consumers, but the current one
+    private void deleteSegments() throws IOException {
+        long minAck = Long.MAX_VALUE;
+        for (String consumerId : consumers) {
+            minAck = Math.min(minAck, acks.get(consumerId));
+        }
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> first = segments.firstEntry();
+            // The last seq of a segment precedes the first one of the next
+            if (segments.higherKey(first.getKey()) - 1 > minAck) {
+                break;
+            }
+            Files.deleteIfExists(first.getValue());
+            segments.remove(first.getKey());
+        }
+    }
+
+    private static byte[] encode(FileEvent event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeLong(event.getSeq());
+        dos.writeByte(event.getType().ordinal());
+        dos.writeUTF(event.getRoot());
+        dos.writeUTF(event.getPath());
+        dos.writeBoolean(event.getRpath() != null);
+        if (event.getRpath() != null) {
+            dos.writeUTF(event.getRpath());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static FileEvent decode(Channel channel, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long seq = in.readLong();
+        FileEvent.Type type = TYPES[in.readByte()];
+        String root = in.readUTF();
+        String path = in.readUTF();
+        String rpath = in.readBoolean() ? in.readUTF() : null;
+        FileEvent event = new FileEvent(channel, root, path, rpath, type);
+        event.setSeq(seq);
+        return event;
+    }
+
+    public synchronized void close() {
+        try {
+            closeSegment();
+        }
+        catch (IOException ex) {
+            LOGGER.warn("EventOutbox.close(): ", ex);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring buffer with a single producer and a single consumer.
+ * <p>
+ * The slots are allocated once, a power of two. Neither side takes a lock:
+ * the producer publishes a slot by moving the tail, the consumer frees it by
+ * moving the head. The producer never waits, an element offered to a full ring
+ * is dropped and counted. Only the consumer waits, parked until the producer
+ * publishes, signals or closes the ring.
+ */
+public class EventRing<E> {
+
+    private final Object[] slots;
+    private final int mask;
+    // The next slot read by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // The next slot written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropCount = new AtomicLong();
+    private volatile int highWater;
+    private volatile Thread waiter;
+    private volatile boolean signalled;
+    private volatile boolean closed;
+
+    public EventRing(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    // Producer only, returns false if the ring is full
+    public boolean offer(E element) {
+        long t = tail.get();
+        int size = (int) (t - head.get());
+        if (size == slots.length) {
+            dropCount.incrementAndGet();
+            return false;
+        }
+        slots[(int) t & mask] = element;
+        // The volatile write publishes the slot, and is ordered before the
+        // read of the waiter
+        tail.set(t + 1);
+        if (size >= highWater) {
+            highWater = size + 1;
+        }
+        wakeup();
+        return true;
+    }
+
+    // Consumer only, null if the ring is empty
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.set(h + 1);
+        return element;
+    }
+
+    // Consumer only: waits until the ring is not empty, signalled or closed,
+    // at most the timeout in ms if it is not negative. Returns false after
+    // the timeout or once closed and empty.
+    public boolean await(long timeout) throws InterruptedException {
+        long deadline = timeout < 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            while (isEmpty() && !signalled && !closed) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (timeout < 0) {
+                    LockSupport.park(this);
+                }
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            signalled = false;
+            return !isEmpty() || !closed;
+        }
+        finally {
+            waiter = null;
+        }
+    }
+
+    // Wakes up the consumer even if the ring is empty
+    public void signal() {
+        signalled = true;
+        wakeup();
+    }
+
+    // The elements left can still be polled
+    public void close() {
+        closed = true;
+        wakeup();
+    }
+
+    private void wakeup() {
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    // The max size reached
+    public int getHighWater() {
+        return highWater;
+    }
+
+    public long getDropCount() {
+        return dropCount.get();
+    }
+}
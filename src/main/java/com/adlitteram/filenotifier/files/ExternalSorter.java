@@ -0,0 +1,243 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts (path, value) entries with PathComparator in a fixed amount of memory.
+ * <p>
+ * The entries are buffered and each full buffer is written as a sorted run to
+ * a temporary file. The cursor merges the runs, so at most one entry per run is
+ * held in memory. Nothing is written when all the entries fit in the buffer.
+ */
+public class ExternalSorter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalSorter.class);
+    private static final Comparator<Entry> ENTRY_COMPARATOR = (e1, e2) -> PathComparator.INSTANCE.compare(e1.key, e2.key);
+
+    public static final int DEFAULT_RUN_SIZE = 100000;
+
+    private final Path tempDir;
+    private final int runSize;
+    private final ArrayList<Path> runs = new ArrayList<>();
+    private ArrayList<Entry> buffer;
+    private long count;
+
+    public ExternalSorter(Path tempDir) {
+        this(tempDir, DEFAULT_RUN_SIZE);
+    }
+
+    public ExternalSorter(Path tempDir, int runSize) {
+        this.tempDir = tempDir;
+        this.runSize = Math.max(1, runSize);
+        this.buffer = new ArrayList<>();
+    }
+
+    // Also called concurrently by the FileWalkTask of a parallel spool
+    public synchronized void add(String key, long value) throws IOException {
+        buffer.add(new Entry(key, value));
+        count++;
+        if (buffer.size() >= runSize) {
+            flush();
+        }
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    public synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    private void flush() throws IOException {
+        buffer.sort(ENTRY_COMPARATOR);
+        Path run = tempDir == null ? Files.createTempFile("spool", ".run") : Files.createTempFile(tempDir, "spool", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 65536))) {
+            for (Entry entry : buffer) {
+                out.writeUTF(entry.key);
+                out.writeLong(entry.value);
+            }
+        }
+        buffer = new ArrayList<>();
+    }
+
+    // Must be called once all the entries have been added
+    public synchronized Cursor cursor() throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(ENTRY_COMPARATOR);
+            return new BufferCursor(buffer);
+        }
+        if (!buffer.isEmpty()) {
+            flush();
+        }
+        return new MergeCursor(runs);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            }
+            catch (IOException ex) {
+                LOGGER.warn("ExternalSorter.close(): ", ex);
+            }
+        }
+        runs.clear();
+        buffer = new ArrayList<>();
+    }
+
+    private static class Entry {
+
+        private final String key;
+        private final long value;
+
+        Entry(String key, long value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Iterates the sorted entries: next() must be called before reading the
+     * first entry.
+     */
+    public static abstract class Cursor implements Closeable {
+
+        protected String key;
+        protected long value;
+
+        public abstract boolean next() throws IOException;
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class BufferCursor extends Cursor {
+
+        private final ArrayList<Entry> entries;
+        private int index = 0;
+
+        BufferCursor(ArrayList<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean next() {
+            if (index >= entries.size()) {
+                key = null;
+                return false;
+            }
+            Entry entry = entries.get(index++);
+            key = entry.key;
+            value = entry.value;
+            return true;
+        }
+    }
+
+    private static class RunReader {
+
+        private final DataInputStream in;
+        private String key;
+        private long value;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 65536));
+        }
+
+        boolean read() throws IOException {
+            try {
+                key = in.readUTF();
+                value = in.readLong();
+                return true;
+            }
+            catch (EOFException ex) {
+                in.close();
+                return false;
+            }
+        }
+    }
+
+    private static class MergeCursor extends Cursor {
+
+        private final PriorityQueue<RunReader> queue;
+        private final ArrayList<RunReader> readers = new ArrayList<>();
+
+        MergeCursor(ArrayList<Path> runs) throws IOException {
+            queue = new PriorityQueue<>(runs.size(), (r1, r2) -> PathComparator.INSTANCE.compare(r1.key, r2.key));
+            try {
+                for (Path run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.read()) {
+                        queue.add(reader);
+                    }
+                }
+            }
+            catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            RunReader reader = queue.poll();
+            if (reader == null) {
+                key = null;
+                return false;
+            }
+            key = reader.key;
+            value = reader.value;
+            if (reader.read()) {
+                queue.add(reader);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class FileEvent {
     private String path;
     private String rpath;
     private Type type;
+    // The position in the outbox, 0 without outbox
+    private long seq;
 
     public FileEvent(Channel channel, String root, String path, Type type) {
         this(channel, root, path, null, type);
@@ -62,6 +64,14 @@ public class FileEvent {
         return type;
     }
 
+    public long getSeq() {
+        return seq;
+    }
+
+    void setSeq(long seq) {
+        this.seq = seq;
+    }
+
     @Override
     public int hashCode() {
         int hash = 3;
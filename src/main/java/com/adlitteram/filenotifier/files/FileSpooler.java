@@ -19,10 +19,13 @@ import com.adlitteram.filenotifier.ChangeListener;
 import com.adlitteram.filenotifier.ChangeListenerPool;
 import com.adlitteram.filenotifier.Channel;
 import java.io.IOException;
+import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,11 +39,22 @@ public class FileSpooler {
     private final Path dbPath;
     private Pattern includePattern;
     private Pattern excludePattern;
+    private Pattern excludeDirPattern;
+    private int maxDepth = 0;
     private final ChangeListenerPool<Object> fileListeners;
     private final ChangeListenerPool<Object> spoolerListeners;
-    private boolean interrupted = false;
+    private volatile boolean interrupted = false;
     private FileWalker walker;
+    private DeleteScanner scanner;
     private final long retainTime;
+    private int parallelism = 1;
+    private boolean incremental = false;
+    private boolean lazyStat = false;
+    private boolean sorted = false;
+    private SortedSpool sortedSpool;
+    private RenameDetector renameDetector;
+    private DirectoryListener directoryListener;
+    private DbConfig dbConfig = DbConfig.DEFAULT;
 
     public FileSpooler(Channel channel, Path dbPath, long retainTime) throws IOException {
         this.channel = channel;
@@ -68,6 +82,77 @@ public class FileSpooler {
         this.excludePattern = excludePattern;
     }
 
+    public Pattern getExcludeDirPattern() {
+        return excludeDirPattern;
+    }
+
+    // The subtrees of the matching directories are not walked
+    public void setExcludeDirPattern(Pattern excludeDirPattern) {
+        this.excludeDirPattern = excludeDirPattern;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(0, maxDepth);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // More than one thread walks the tree with a ForkJoinPool
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    // Files of the directories unchanged since the last spool are not read again
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isLazyStat() {
+        return lazyStat;
+    }
+
+    // Like incremental but only the new names of the unchanged directories are read
+    public void setLazyStat(boolean lazyStat) {
+        this.lazyStat = lazyStat;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    // The walk is diffed against the last spool with sorted temporary files
+    // instead of lookups in the old map
+    public void setSorted(boolean sorted) {
+        this.sorted = sorted;
+    }
+
+    public DirectoryListener getDirectoryListener() {
+        return directoryListener;
+    }
+
+    // Receives the walked directories, so the watcher does not walk them again
+    public void setDirectoryListener(DirectoryListener directoryListener) {
+        this.directoryListener = directoryListener;
+    }
+
+    public DbConfig getDbConfig() {
+        return dbConfig;
+    }
+
+    public void setDbConfig(DbConfig dbConfig) {
+        this.dbConfig = dbConfig;
+    }
+
     public void addPath(Path path) throws IOException {
         if (!rootPaths.contains(path)) {
             rootPaths.add(path);
@@ -85,57 +170,162 @@ public class FileSpooler {
     public void run() {
         long time = System.currentTimeMillis();
         spoolerListeners.firechange(new RunEvent(channel, RunEvent.Type.START, "Starting spooler"));
-        DbManager dbManager = DbManager.createManager(dbPath);
+        DbManager dbManager = DbManager.createManager(dbPath, dbConfig);
+        dbManager.migrateKeys(rootPaths);
+        SpoolCheckpoint checkpoint = dbManager.getCheckpoint();
+        // Added last, the outbox receives the events before the other listeners
+        EventOutbox outbox = dbManager.getOutbox();
+        if (outbox != null) {
+            fileListeners.addListener(outbox);
+        }
+        if (checkpoint.isResumed()) {
+            log("Resuming spool after: " + checkpoint.getLastDir());
+        }
+
+        PathFilter filter = new PathFilter(includePattern, excludePattern, excludeDirPattern, maxDepth);
+        boolean incremental = this.incremental && !sorted;
+        boolean lazyStat = this.lazyStat && !sorted;
+        boolean fingerprints = dbConfig.isFingerprints() && !sorted;
+        if (sorted) {
+            if (this.incremental || this.lazyStat) {
+                log("The incremental modes are disabled by the sorted spool");
+            }
+            if (dbConfig.isFingerprints()) {
+                log("The rename detection is disabled by the sorted spool");
+            }
+            sortedSpool = new SortedSpool(channel, fileListeners, rootPaths, filter, retainTime, dbPath.toAbsolutePath().getParent());
+        }
 
         try {
+            checkpoint.start();
+            // Nothing can be renamed on the first spool
+            if (fingerprints && dbManager.getFileMap().size() > 0) {
+                renameDetector = new RenameDetector(channel, fileListeners, rootPaths, filter, dbConfig.getRenameMemory() * 1024L * 1024L);
+            }
 
             for (Path rootPath : rootPaths) {
-                walker = new FileWalker(channel, fileListeners, rootPath, dbManager.getOldMap(), dbManager.getCurMap(), includePattern, excludePattern, retainTime);
-                Files.walkFileTree(rootPath, walker);
-                if (interrupted) {
+                IoBudget.Device device = IoBudget.getInstance().getDevice(rootPath);
+                if (!device.acquireWalker(() -> interrupted)) {
                     break;
                 }
-            }
-
-            for (String key : dbManager.getOldMap().keySet()) {
-                if (interrupted) {
-                    break;
+                walker = new FileWalker(channel, fileListeners, rootPath, dbManager.getFileMap(), filter, retainTime);
+                walker.setDevice(device);
+                walker.setFingerprints(fingerprints);
+                walker.setRenameDetector(renameDetector);
+                walker.setDirectoryListener(directoryListener);
+                if (sortedSpool != null) {
+                    // The diff is done after the walk so done directories cannot be skipped
+                    walker.setSorter(sortedSpool.getWalkSorter());
                 }
-                if (DbManager.NAME_KEY.equals(key) || ".".equals(key)) {
-                    continue;
+                else {
+                    walker.setCheckpoint(checkpoint);
                 }
-
-                Path path = Paths.get(key);
-
-                String name = path.getFileName().toString();
-                if (includePattern != null && !includePattern.matcher(name).matches() && !Files.isDirectory(path)) {
-                    continue;
+                if (incremental || lazyStat) {
+                    walker.setDirMap(dbManager.getDirMap());
+                    walker.setLazyStat(lazyStat);
                 }
-                if (excludePattern != null && excludePattern.matcher(name).matches()) {
-                    continue;
+                try {
+                    if (parallelism > 1 || incremental || lazyStat) {
+                        walkParallel(rootPath);
+                    }
+                    else {
+                        Files.walkFileTree(rootPath, EnumSet.noneOf(FileVisitOption.class), maxDepth > 0 ? maxDepth : Integer.MAX_VALUE, walker);
+                    }
+                }
+                finally {
+                    device.releaseWalker();
+                    log(device.toString());
                 }
+                // A resumed walk skips the directories done before
+                if (directoryListener != null) {
+                    directoryListener.walked(rootPath, !isInterrupted() && !checkpoint.isResumed());
+                }
+                if (isInterrupted()) {
+                    break;
+                }
+            }
 
-                for (Path rootPath : rootPaths) {
-                    if (path.startsWith(rootPath)) {
-                        String r = rootPath.toString();
-                        String p = rootPath.relativize(path).toString();
-                        fileListeners.firechange(new FileEvent(channel, r, p, FileEvent.Type.DELETE));
-                        break;
-                    }
+            if (sortedSpool != null) {
+                if (!isInterrupted()) {
+                    sortedSpool.merge(dbManager.getFileMap(), dbManager.getDirMap());
                 }
             }
+            // The keys left on the old generation have been deleted
+            else if (!interrupted) {
+                scanner = new DeleteScanner(channel, fileListeners, rootPaths, filter);
+                scanner.setDirMap(dbManager.getDirMap());
+                scanner.setFileMap(dbManager.getFileMap());
+                scanStale(dbManager.getFileMap());
+            }
+            if (!isInterrupted()) {
+                log(dbManager.removeStale() + " deleted entries removed");
+                checkpoint.complete();
+            }
             dbManager.commit();
         }
         catch (IOException ex) {
             LOGGER.warn(channel.getId() + " - FileSpooler.run(): ", ex);
         }
         finally {
+            if (sortedSpool != null) {
+                sortedSpool.close();
+            }
+            // The held entries of an interrupted walk are reported as created
+            if (renameDetector != null) {
+                renameDetector.flush();
+                renameDetector = null;
+            }
+            if (outbox != null) {
+                fileListeners.removeListener(outbox);
+                outbox.sync();
+            }
             spoolerListeners.firechange(new RunEvent(channel, RunEvent.Type.STOP, "Spooler stopped"));
         }
 
         log("Spooler Time: " + (System.currentTimeMillis() - time));
     }
 
+    // The stale keys are sorted on disk and streamed to the scanner, the
+    // renamed ones are matched on the way
+    private void scanStale(GenerationMap fileMap) throws IOException {
+        try (ExternalSorter staleSorter = new ExternalSorter(dbPath.toAbsolutePath().getParent())) {
+            for (Map.Entry<String, Object> entry : fileMap.getMap().entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (".".equals(key) || fileMap.isCurrent(value)) {
+                    continue;
+                }
+                if (renameDetector == null || !renameDetector.match(key, value)) {
+                    staleSorter.add(key, 0);
+                }
+                if (isInterrupted()) {
+                    return;
+                }
+            }
+            if (renameDetector != null) {
+                renameDetector.complete();
+            }
+            try (ExternalSorter.Cursor cursor = staleSorter.cursor()) {
+                scanner.scan(cursor);
+            }
+        }
+    }
+
+    // A walker also stops on a write error of the sorted spool
+    private boolean isInterrupted() {
+        return interrupted || (walker != null && walker.isInterrupted());
+    }
+
+    private void walkParallel(Path rootPath) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(FileWalkTask.create(walker, rootPath));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
     public void addFileListener(ChangeListener<Object> cl) {
         fileListeners.addListener(cl);
     }
@@ -166,6 +356,12 @@ public class FileSpooler {
         if (walker != null) {
             walker.interrupt();
         }
+        if (scanner != null) {
+            scanner.interrupt();
+        }
+        if (sortedSpool != null) {
+            sortedSpool.interrupt();
+        }
     }
 
     private void log(String message) {
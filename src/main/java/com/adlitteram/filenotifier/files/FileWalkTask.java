@@ -0,0 +1,150 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Visits a directory and forks a new task for each of its subdirectories.
+ * Entries are passed to the same FileWalker.visit() as Files.walkFileTree()
+ * so both modes generate the same events. Links are not followed and
+ * unreadable entries are ignored like in the sequential walk.
+ * <p>
+ * In incremental mode, the files of a directory unchanged since the last spool
+ * are carried over without reading their attributes. Only the subdirectories
+ * are read and walked. In lazy stat mode, the new names of an unchanged
+ * directory are also read.
+ * <p>
+ * A directory is checkpointed once all its subtasks have completed. Excluded
+ * directories and the ones at the max depth are not walked. A directory which
+ * cannot be listed is not visited, as Files.walkFileTree() reports it to
+ * visitFileFailed(): its entries are left to the deletion pass.
+ */
+class FileWalkTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FileWalker walker;
+    private final Path path;
+    private final BasicFileAttributes attrs;
+    private final int depth;
+
+    FileWalkTask(FileWalker walker, Path path, BasicFileAttributes attrs, int depth) {
+        this.walker = walker;
+        this.path = path;
+        this.attrs = attrs;
+        this.depth = depth;
+    }
+
+    static FileWalkTask create(FileWalker walker, Path rootPath) throws IOException {
+        return new FileWalkTask(walker, rootPath, Files.readAttributes(rootPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), 0);
+    }
+
+    @Override
+    protected void compute() {
+        if (walker.isInterrupted() || (attrs.isDirectory() && walker.isDone(path))) {
+            return;
+        }
+
+        int maxDepth = walker.getMaxDepth();
+        if (!attrs.isDirectory() || (maxDepth > 0 && depth >= maxDepth)) {
+            walker.visit(path, attrs);
+            return;
+        }
+
+        ArrayList<Path> children = new ArrayList<>();
+        walker.throttle();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+        catch (IOException | DirectoryIteratorException ex) {
+            // Same as FileWalker.visitFileFailed()
+            return;
+        }
+        walker.visit(path, attrs);
+
+        // The children of an unchanged directory which were walked as
+        // directories by the last spool, null if the directory is read again
+        boolean[] directories = null;
+        if (walker.isIncremental() && walker.isUnchanged(path, attrs, children.size())) {
+            directories = new boolean[children.size()];
+            int count = 0;
+            for (int i = 0; i < children.size(); i++) {
+                if (directories[i] = walker.isDirectory(children.get(i))) {
+                    count++;
+                }
+            }
+            // A subdirectory missing from the dir map cannot be told from a
+            // file without reading it, it would be carried as a file
+            if (count != walker.getDirectoryCount(path)) {
+                directories = null;
+            }
+        }
+        ArrayList<FileWalkTask> tasks = new ArrayList<>();
+        int walked = 0;
+
+        for (int i = 0; i < children.size(); i++) {
+            Path child = children.get(i);
+            if (walker.isInterrupted()) {
+                break;
+            }
+            if (directories != null && !directories[i] && (walker.carry(child) || !walker.isLazyStat())) {
+                continue;
+            }
+            walker.throttle();
+            try {
+                BasicFileAttributes childAttrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (childAttrs.isDirectory()) {
+                    if (!walker.acceptDirectory(child)) {
+                        continue;
+                    }
+                    FileWalkTask task = new FileWalkTask(walker, child, childAttrs, depth + 1);
+                    task.fork();
+                    tasks.add(task);
+                    // The ones at the max depth are not stored
+                    if (maxDepth == 0 || depth + 1 < maxDepth) {
+                        walked++;
+                    }
+                }
+                else {
+                    walker.visit(child, childAttrs);
+                }
+            }
+            catch (IOException ex) {
+                // Same as FileWalker.visitFileFailed()
+            }
+        }
+
+        if (walker.isIncremental() && !walker.isInterrupted()) {
+            walker.storeDirectory(path, attrs, children.size(), walked);
+        }
+
+        for (FileWalkTask task : tasks) {
+            task.join();
+        }
+        walker.done(path);
+    }
+}
@@ -23,7 +23,7 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,81 +31,239 @@ public class FileWalker implements FileVisitor<Path> {
 
     private final Logger LOGGER = LoggerFactory.getLogger(FileWalker.class);
 
-    private final Map<String, Long> oldMap;
-    private final Map<String, Long> curMap;
+    private final GenerationMap fileMap;
     private final Channel channel;
     private final ChangeListenerPool<Object> fileListeners;
     private final Path rootPath;
-    private boolean interrupted = false;
-    private final Pattern includePattern;
-    private final Pattern excludePattern;
+    private volatile boolean interrupted = false;
+    private final PathFilter filter;
     private final long retainTime;
+    private Map<String, long[]> dirMap;
+    private SpoolCheckpoint checkpoint;
+    private IoBudget.Device device;
+    private boolean lazyStat;
+    private ExternalSorter sorter;
+    private boolean fingerprints;
+    private RenameDetector renameDetector;
+    private DirectoryListener directoryListener;
+    private Set<String> visitedKeys;
 
-    public FileWalker(Channel channel, ChangeListenerPool<Object> fileListeners, Path rootPath, Map<String, Long> oldMap, Map<String, Long> curMap, Pattern includePattern, Pattern excludePattern, long retainTime) {
+    public FileWalker(Channel channel, ChangeListenerPool<Object> fileListeners, Path rootPath, GenerationMap fileMap, PathFilter filter, long retainTime) {
         this.channel = channel;
         this.fileListeners = fileListeners;
         this.rootPath = rootPath;
-        this.oldMap = oldMap;
-        this.curMap = curMap;
-        this.excludePattern = excludePattern;
-        this.includePattern = includePattern;
+        this.fileMap = fileMap;
+        this.filter = filter;
         this.retainTime = retainTime;
     }
 
-    private void visit(Path path, BasicFileAttributes attrs) throws IOException {
-        String key = path.toString();
+    // Incremental mode: directories are recorded and the files of the unchanged
+    // ones are carried over from the last spool without reading their attributes
+    public void setDirMap(Map<String, long[]> dirMap) {
+        this.dirMap = dirMap;
+    }
+
+    // The directories fully visited are recorded, the ones of an interrupted spool are skipped
+    public void setCheckpoint(SpoolCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    boolean isDone(Path dir) {
+        return checkpoint != null && checkpoint.isDone(dir.toString());
+    }
+
+    void done(Path dir) {
+        if (checkpoint != null && !interrupted) {
+            checkpoint.done(dir.toString());
+        }
+    }
+
+    // Paces the stats on the I/O budget of the device
+    public void setDevice(IoBudget.Device device) {
+        this.device = device;
+    }
+
+    void throttle() {
+        if (device != null) {
+            device.acquireStat();
+        }
+    }
+
+    public boolean isIncremental() {
+        return dirMap != null;
+    }
+
+    // Lazy stat mode: the child count is not checked, the names of an unchanged
+    // directory are compared to the file map and only the new ones are read
+    public void setLazyStat(boolean lazyStat) {
+        this.lazyStat = lazyStat;
+    }
+
+    public boolean isLazyStat() {
+        return lazyStat;
+    }
+
+    // Sorted mode: the visited entries are written to the sorter and diffed
+    // after the walk by the SortedSpool, the maps are not read
+    public void setSorter(ExternalSorter sorter) {
+        this.sorter = sorter;
+    }
+
+    // The size and the file key of the visited entries are also stored
+    public void setFingerprints(boolean fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    // The new entries are held by the detector until the walk is complete
+    public void setRenameDetector(RenameDetector renameDetector) {
+        this.renameDetector = renameDetector;
+    }
+
+    // Receives the walked directories whose entries are accepted
+    public void setDirectoryListener(DirectoryListener directoryListener) {
+        this.directoryListener = directoryListener;
+    }
+
+    // Rescan mode: the keys of the accepted entries are collected, the entries
+    // of the map missing from them are then removed by the caller
+    public void setVisitedKeys(Set<String> visitedKeys) {
+        this.visitedKeys = visitedKeys;
+    }
+
+    private boolean accept(String name, boolean isDirectory) {
+        return filter.accept(name, isDirectory);
+    }
+
+    // The subtree of an excluded directory is skipped
+    boolean acceptDirectory(Path dir) {
+        if (!filter.hasDirectoryRules() || dir.equals(rootPath)) {
+            return true;
+        }
+        return filter.acceptDirectory(dir.getFileName().toString(), rootPath.relativize(dir).toString());
+    }
+
+    int getMaxDepth() {
+        return filter.getMaxDepth();
+    }
+
+    // Also called concurrently by the FileWalkTask of a parallel spool
+    void visit(Path path, BasicFileAttributes attrs) {
+        String key = KeyCodec.toKey(path);
         if (key.isEmpty()) {
             return;
         }
 
-        String name = path.getFileName().toString();
-        if (includePattern != null && !includePattern.matcher(name).matches() && !attrs.isDirectory()) {
-            return;
+        // The entries of an excluded directory name are still walked
+        if (directoryListener != null && attrs.isDirectory() && filter.acceptDepth(path.getNameCount() - rootPath.getNameCount() + 1)) {
+            directoryListener.visited(rootPath, path, attrs);
         }
-        if (excludePattern != null && excludePattern.matcher(name).matches()) {
+
+        if (!accept(path.getFileName().toString(), attrs.isDirectory())) {
             return;
         }
+        if (visitedKeys != null) {
+            visitedKeys.add(key);
+        }
 
         long filetime = Math.max(attrs.lastModifiedTime().toMillis(), attrs.creationTime().toMillis());
-        Long value = Long.valueOf(filetime);
-        curMap.put(key, value);
-        Long oldValue = oldMap.get(key);
+        if (sorter != null) {
+            try {
+                sorter.add(key, filetime);
+            }
+            catch (IOException ex) {
+                LOGGER.warn(channel.getId() + " - FileWalker.visit(): ", ex);
+                interrupt();
+            }
+            return;
+        }
 
+        long fileKey = fingerprints ? GenerationMap.getFileKey(attrs) : 0;
+        Object oldValue = fileMap.put(key, filetime, attrs.size(), fileKey);
         if (oldValue == null) {
+            String root = rootPath.toString();
+            String relative = rootPath.relativize(path).toString();
+            if (renameDetector != null && renameDetector.add(root, relative, filetime, attrs.size(), fileKey, attrs.isDirectory(), filetime > retainTime)) {
+                return;
+            }
             if (filetime > retainTime) {
-                fileListeners.firechange(new FileEvent(channel, rootPath.toString(), rootPath.relativize(path).toString(), FileEvent.Type.CREATE));
+                fire(new FileEvent(channel, root, relative, FileEvent.Type.CREATE));
             }
         }
-        else if (!oldValue.equals(value)) {
+        else if (GenerationMap.getTime(oldValue) != filetime) {
             if (filetime > retainTime) {
-                fileListeners.firechange(new FileEvent(channel, rootPath.toString(), rootPath.relativize(path).toString(), FileEvent.Type.MODIFY));
+                fire(new FileEvent(channel, rootPath.toString(), rootPath.relativize(path).toString(), FileEvent.Type.MODIFY));
             }
-            oldMap.remove(key);
         }
-        else {
-            oldMap.remove(key);
+    }
+
+    // A directory is unchanged if its modified time and its child count are the
+    // same as in the last spool. The ones stored by the interrupted spool being
+    // resumed are read again as their children may not have been visited.
+    boolean isUnchanged(Path dir, BasicFileAttributes attrs, int count) {
+        long[] value = dirMap.get(KeyCodec.toKey(dir));
+        return value != null && value[2] != fileMap.getGeneration() && value[0] == attrs.lastModifiedTime().toMillis() && (lazyStat || value[1] == count);
+    }
+
+    boolean isDirectory(Path path) {
+        return dirMap.containsKey(KeyCodec.toKey(path));
+    }
+
+    // The count of subdirectories walked by the last spool
+    int getDirectoryCount(Path dir) {
+        long[] value = dirMap.get(KeyCodec.toKey(dir));
+        return value != null ? (int) value[3] : -1;
+    }
+
+    void storeDirectory(Path dir, BasicFileAttributes attrs, int count, int directoryCount) {
+        dirMap.put(KeyCodec.toKey(dir), new long[]{attrs.lastModifiedTime().toMillis(), count, fileMap.getGeneration(), directoryCount});
+    }
+
+    // Returns false if the file is not in the map
+    boolean carry(Path path) {
+        if (!accept(path.getFileName().toString(), false)) {
+            return true;
+        }
+        return fileMap.touch(KeyCodec.toKey(path));
+    }
+
+    // Listeners are not thread safe
+    private void fire(FileEvent event) {
+        synchronized (fileListeners) {
+            fileListeners.firechange(event);
         }
     }
 
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (isDone(dir) || !acceptDirectory(dir)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+        throttle();
         visit(dir, attrs);
         return interrupted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        visit(file, attrs);
+        throttle();
+        // Directories at the max depth are visited as files
+        if (!attrs.isDirectory() || acceptDirectory(file)) {
+            visit(file, attrs);
+        }
         return interrupted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
     }
 
     @Override
     public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        throttle();
         return interrupted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
     }
 
     @Override
     public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc == null) {
+            done(dir);
+        }
         return interrupted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
     }
 
@@ -113,6 +271,10 @@ public class FileWalker implements FileVisitor<Path> {
         interrupted = true;
     }
 
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
     private void log(String message) {
         LOGGER.info(channel.getId() + " - " + message);
     }
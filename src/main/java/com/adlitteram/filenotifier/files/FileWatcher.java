@@ -19,22 +19,28 @@ import com.adlitteram.filenotifier.ChangeListener;
 import com.adlitteram.filenotifier.ChangeListenerPool;
 import com.adlitteram.filenotifier.Channel;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
-import name.pachler.nio.file.ClosedWatchServiceException;
-import name.pachler.nio.file.FileSystems;
-import name.pachler.nio.file.Path;
-import name.pachler.nio.file.Paths;
-import name.pachler.nio.file.StandardWatchEventKind;
 import name.pachler.nio.file.WatchEvent;
-import name.pachler.nio.file.WatchKey;
-import name.pachler.nio.file.WatchService;
-import name.pachler.nio.file.ext.ExtendedWatchEventKind;
-import name.pachler.nio.file.ext.ExtendedWatchEventModifier;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,54 +49,74 @@ public class FileWatcher implements Runnable {
 
     private final Logger logger = LoggerFactory.getLogger(FileWatcher.class);
 
-    private static final WatchEvent.Kind[] WEK1 = new WatchEvent.Kind[]{
-        StandardWatchEventKind.ENTRY_CREATE,
-        StandardWatchEventKind.ENTRY_DELETE,
-        StandardWatchEventKind.ENTRY_MODIFY,
-        ExtendedWatchEventKind.ENTRY_RENAME_FROM,
-        ExtendedWatchEventKind.ENTRY_RENAME_TO,
-        StandardWatchEventKind.OVERFLOW};
+    private static final char SEPARATOR = PathComparator.SEPARATOR;
+    private static final Set<FileWatcher> RUNNING = ConcurrentHashMap.newKeySet();
+    // The pending rescans wait until no event is read for this delay in ms, or
+    // at most MAX_RESCAN_DELAY, so the lost events of a burst are rescanned once
+    private static final long RESCAN_DELAY = 1000;
+    private static final long MAX_RESCAN_DELAY = 10000;
+    // The entries below a directory are moved by batches of this count
+    private static final int SUBTREE_BATCH = 10000;
 
-    private static final WatchEvent.Kind[] WEK2 = new WatchEvent.Kind[]{
-        StandardWatchEventKind.ENTRY_CREATE,
-        StandardWatchEventKind.ENTRY_DELETE,
-        StandardWatchEventKind.ENTRY_MODIFY,
-        StandardWatchEventKind.OVERFLOW};
-
-    private static final WatchEvent.Modifier[] WEM = new WatchEvent.Modifier[]{
-        ExtendedWatchEventModifier.FILE_TREE};
+    public static final String JPATHWATCH_BACKEND = "jpathwatch";
+    public static final String JDK_BACKEND = "jdk";
 
     //@SuppressWarnings("rawtypes")
     private Channel channel;
-    private java.nio.file.Path dbPath;
+    private Path dbPath;
     private Pattern includePattern;
     private Pattern excludePattern;
-    private WatchEvent.Kind[] eventKinds;
-    private WatchEvent.Modifier[] eventModifiers;
-    private WatchService watchService;
-    private Map<WatchKey, Path> keys;
+    private Pattern excludeDirPattern;
+    private int maxDepth = 0;
+    private PathFilter filter;
+    private DbConfig dbConfig = DbConfig.DEFAULT;
+    private long commitDelay = 0;
+    private int commitCount = 1000;
+    private WatchBackend backend;
+    private int intakeCapacity = 16384;
+    private volatile WatchIntake intake;
+    private int statThreads = 0;
+    private StatResolver resolver;
+    private Map<String, long[]> updates;
+    private Map<String, String> rescans;
+    // The time of the first pending rescan
+    private long rescanTime;
+    private BackgroundCompactor compactor;
+    private boolean subtreeIndex = false;
+    private boolean childEvents = false;
+    private SubtreeIndex index;
+    private int updateCount;
     private ChangeListenerPool<Object> fileListeners;
     private ChangeListenerPool<Object> watcherListeners;
     private boolean interrupted = false;
     private boolean waiting = false;
 
-    public FileWatcher(Channel channel, java.nio.file.Path dbPath) {
+    public FileWatcher(Channel channel, Path dbPath) {
         this(channel, dbPath, false);
     }
 
-    public FileWatcher(Channel channel, java.nio.file.Path dbPath, boolean b) {
-        this(channel, dbPath, b ? WEK1 : WEK2, WEM);
+    public FileWatcher(Channel channel, Path dbPath, boolean b) {
+        this(channel, dbPath, new JPathWatchBackend(b));
+    }
+
+    public FileWatcher(Channel channel, Path dbPath, WatchEvent.Kind[] standardEvents, WatchEvent.Modifier[] eventModifiers) {
+        this(channel, dbPath, new JPathWatchBackend(standardEvents, eventModifiers));
     }
 
-    public FileWatcher(Channel channel, java.nio.file.Path dbPath, WatchEvent.Kind[] standardEvents, WatchEvent.Modifier[] eventModifiers) {
+    public FileWatcher(Channel channel, Path dbPath, WatchBackend backend) {
         this.channel = channel;
         this.dbPath = dbPath;
-        this.eventKinds = standardEvents;
-        this.eventModifiers = eventModifiers;
+        this.backend = backend;
         this.fileListeners = new ChangeListenerPool<>();
         this.watcherListeners = new ChangeListenerPool<>();
-        this.keys = new HashMap<>();
-        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    // jpathwatch (default) or jdk, the jdk backend does not report renames
+    public static WatchBackend createBackend(String name, boolean extended) throws IOException {
+        if (JDK_BACKEND.equalsIgnoreCase(name)) {
+            return new JdkWatchBackend();
+        }
+        return new JPathWatchBackend(extended);
     }
 
     public void addWatcherListener(ChangeListener<Object> cl) {
@@ -117,21 +143,12 @@ public class FileWatcher implements Runnable {
         return fileListeners.getListeners();
     }
 
-    public synchronized void addPath(java.nio.file.Path path) throws IOException {
-        Path cpath = Paths.get(path.toString());
-        WatchKey key = cpath.register(watchService, eventKinds, eventModifiers);
-        keys.put(key, cpath);
+    public void addPath(Path path) throws IOException {
+        backend.addRoot(path);
     }
 
-    public synchronized void removePath(java.nio.file.Path path) {
-        Path cpath = Paths.get(path.toString());
-        for (Map.Entry<WatchKey, Path> entry : keys.entrySet()) {
-            if (entry.getValue().equals(cpath)) {
-                entry.getKey().cancel();
-                keys.remove(entry.getKey());
-                break;
-            }
-        }
+    public void removePath(Path path) {
+        backend.removeRoot(path);
     }
 
     public Pattern getIncludePattern() {
@@ -150,22 +167,194 @@ public class FileWatcher implements Runnable {
         this.excludePattern = excludePattern;
     }
 
+    public Pattern getExcludeDirPattern() {
+        return excludeDirPattern;
+    }
+
+    // The events of the matching directories and of their subtrees are ignored
+    public void setExcludeDirPattern(Pattern excludeDirPattern) {
+        this.excludeDirPattern = excludeDirPattern;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(0, maxDepth);
+    }
+
+    public DbConfig getDbConfig() {
+        return dbConfig;
+    }
+
+    public void setDbConfig(DbConfig dbConfig) {
+        this.dbConfig = dbConfig;
+    }
+
+    public long getCommitDelay() {
+        return commitDelay;
+    }
+
+    // Group commit: the updates are committed in the background after this
+    // delay in ms, 0 commits after each signalled key
+    public void setCommitDelay(long commitDelay) {
+        this.commitDelay = Math.max(0, commitDelay);
+    }
+
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    // Group commit: the max count of uncommitted updates, 0 for no limit
+    public void setCommitCount(int commitCount) {
+        this.commitCount = Math.max(0, commitCount);
+    }
+
+    public boolean isSubtreeIndex() {
+        return subtreeIndex;
+    }
+
+    // The entries below a deleted or renamed directory are removed or moved
+    // with it, the keys of the database are then indexed out of the heap
+    public void setSubtreeIndex(boolean subtreeIndex) {
+        this.subtreeIndex = subtreeIndex;
+    }
+
+    public boolean isChildEvents() {
+        return childEvents;
+    }
+
+    // With the subtree index, an event is also fired for each entry below a
+    // deleted or renamed directory
+    public void setChildEvents(boolean childEvents) {
+        this.childEvents = childEvents;
+    }
+
+    public int getIntakeCapacity() {
+        return intakeCapacity;
+    }
+
+    // The events are read by an intake thread and kept in a ring of this
+    // capacity until processed, 0 reads them on the watcher thread
+    public void setIntakeCapacity(int intakeCapacity) {
+        this.intakeCapacity = Math.max(0, intakeCapacity);
+    }
+
+    public int getStatThreads() {
+        return statThreads;
+    }
+
+    // The attributes of a batch of events are read by this count of threads,
+    // 0 reads them one by one in the watcher thread
+    public void setStatThreads(int statThreads) {
+        this.statThreads = Math.max(0, statThreads);
+    }
+
+    // The status of the intake of the running watchers
+    public static List<String> getRunningStatus() {
+        ArrayList<String> list = new ArrayList<>();
+        for (FileWatcher watcher : RUNNING) {
+            WatchIntake watchIntake = watcher.intake;
+            if (watchIntake != null) {
+                list.add(watcher.channel.getId() + " - " + watchIntake.getStatus());
+            }
+        }
+        return list;
+    }
+
     @Override
     public void run() {
         watcherListeners.firechange(new RunEvent(channel, RunEvent.Type.START, "Watcher Started"));
-        DbManager dbManager = DbManager.createManager(dbPath);
-        int counter = 0;
+        DbManager dbManager = DbManager.createManager(dbPath, dbConfig);
+        filter = new PathFilter(includePattern, excludePattern, excludeDirPattern, maxDepth);
+        try {
+            backend.start(filter);
+        }
+        catch (IOException ex) {
+            logger.warn(channel.getId() + " - Unable to register the watched directories", ex);
+        }
+        if (intakeCapacity > 0) {
+            intake = new WatchIntake(channel.getId(), backend, intakeCapacity);
+            intake.start();
+            RUNNING.add(this);
+        }
+        if (statThreads > 0) {
+            log("Stat resolution: " + statThreads + " threads");
+            resolver = new StatResolver(channel.getId(), statThreads);
+        }
+        // The updates are kept in memory while the database is compacted
+        updates = new LinkedHashMap<>();
+        // The subtrees whose events were lost: key -> root
+        rescans = new HashMap<>();
+        compactor = new BackgroundCompactor(dbManager, channel.getId());
+        // Added last, the outbox receives the events before the other listeners
+        EventOutbox outbox = dbManager.getOutbox();
+        if (outbox != null) {
+            fileListeners.addListener(outbox);
+        }
+        if (subtreeIndex) {
+            long time = System.currentTimeMillis();
+            try {
+                index = new SubtreeIndex();
+                for (String key : dbManager.getFileMap().getMap().keySet()) {
+                    if (!addToIndex(key)) {
+                        break;
+                    }
+                }
+            }
+            catch (OutOfMemoryError ex) {
+                logger.warn(channel.getId() + " - The subtree index cannot be allocated: " + ex.getMessage());
+                index = null;
+            }
+            if (index != null) {
+                log("Subtree index: " + index.size() + " entries in " + (System.currentTimeMillis() - time) + " ms");
+            }
+        }
+
+        GroupCommitter committer = null;
+        if (commitDelay > 0) {
+            log("Group commit: " + commitDelay + " ms - " + commitCount + " updates");
+            committer = new GroupCommitter(dbManager, channel.getId(), commitDelay, commitCount);
+            committer.start();
+        }
+
+        // A rename may be split between two polls of the intake
+        String rroot = null;
+        String rpath = null;
+        // True if the last poll timed out or returned no event: the events
+        // are drained
+        boolean idle = false;
 
         while (!interrupted) {
-            WatchKey signalledKey;
+            if (!updates.isEmpty() && !compactor.isRunning()) {
+                writeUpdates(dbManager, committer);
+            }
+            if (!rescans.isEmpty() && updates.isEmpty() && !compactor.isRunning()
+                && (idle || System.currentTimeMillis() - rescanTime >= MAX_RESCAN_DELAY)) {
+                rescan(dbManager, committer);
+            }
+
+            List<WatchBackend.Event> watchEventList;
+            Map<String, BasicFileAttributes> stats = null;
             try {
                 waiting = true;
-                // take() will block until a file has been created/deleted
-                signalledKey = watchService.take();
+                // Blocks until a file has been created/deleted, or returns
+                // after 1 s to write the kept updates or to rescan once
+                // compacted and drained
+                long timeout = updates.isEmpty() && rescans.isEmpty() ? -1 : RESCAN_DELAY;
+                watchEventList = intake != null ? intake.poll(timeout) : backend.poll(timeout);
                 waiting = false;
                 if (interrupted) {
                     break;
                 }
+                if (watchEventList != null) {
+                    watchEventList = backend.process(watchEventList);
+                }
+                idle = watchEventList == null || watchEventList.isEmpty();
+                if (watchEventList != null && resolver != null) {
+                    stats = resolver.resolve(getStatKeys(watchEventList));
+                }
             }
             catch (InterruptedException ie) {
                 logger.info(channel.getId() + " - Watch service interrupted, terminating: {}", ie.getMessage());
@@ -176,66 +365,72 @@ public class FileWatcher implements Runnable {
                 break;
             }
 
-            // get list of events from key
-            String root = keys.get(signalledKey).toString();
-            List<WatchEvent<?>> watchEventList = signalledKey.pollEvents();
-            counter += watchEventList.size();
-
-            // VERY IMPORTANT! call reset() AFTER pollEvents() to allow the
-            // key to be reported again by the watch service
-            signalledKey.reset();
-
-            Path rpath = null;
+            if (watchEventList == null) {
+                continue;
+            }
 
-            for (WatchEvent we : watchEventList) {
+            for (WatchBackend.Event we : watchEventList) {
                 FileEvent fe = null;
+                String root = we.getRoot();
+                String cpath = we.getPath();
 
-                if (we.kind() == StandardWatchEventKind.ENTRY_CREATE) {
-                    Path cpath = (Path) we.context();
-                    BasicFileAttributes attrs = getAttributes(root, cpath);
+                if (we.getKind() == WatchBackend.Kind.CREATE) {
+                    BasicFileAttributes attrs = getAttributes(stats, root, cpath);
                     if (attrs != null && acceptPath(cpath, attrs)) {
-                        fe = new FileEvent(channel, root, cpath.toString(), FileEvent.Type.CREATE);
-                        dbManager.getCurMap().put(cpath.toString(), Long.valueOf(attrs.lastModifiedTime().toMillis()));
+                        fe = new FileEvent(channel, root, cpath, FileEvent.Type.CREATE);
+                        String key = KeyCodec.toKey(root, cpath);
+                        putState(dbManager, key, attrs);
+                        addToIndex(key);
                     }
                 }
-                else if (we.kind() == StandardWatchEventKind.ENTRY_DELETE) {
-                    Path cpath = (Path) we.context();
-                    if (acceptPath(cpath, null)) {
-                        fe = new FileEvent(channel, root, cpath.toString(), FileEvent.Type.DELETE);
-                        dbManager.getCurMap().remove(cpath.toString());
+                else if (we.getKind() == WatchBackend.Kind.DELETE) {
+                    String key = KeyCodec.toKey(root, cpath);
+                    if (acceptDeleted(dbManager, key, cpath)) {
+                        fe = new FileEvent(channel, root, cpath, FileEvent.Type.DELETE);
+                        removeState(dbManager, key);
+                        updateSubtree(dbManager, root, key, null);
                     }
                 }
-                else if (we.kind() == StandardWatchEventKind.ENTRY_MODIFY) {
-                    Path cpath = (Path) we.context();
-                    BasicFileAttributes attrs = getAttributes(root, cpath);
+                else if (we.getKind() == WatchBackend.Kind.MODIFY) {
+                    BasicFileAttributes attrs = getAttributes(stats, root, cpath);
                     if (attrs != null && !attrs.isDirectory() && acceptPath(cpath, attrs)) {
-                        fe = new FileEvent(channel, root, cpath.toString(), FileEvent.Type.MODIFY);
-                        dbManager.getCurMap().put(cpath.toString(), Long.valueOf(attrs.lastModifiedTime().toMillis()));
+                        fe = new FileEvent(channel, root, cpath, FileEvent.Type.MODIFY);
+                        putState(dbManager, KeyCodec.toKey(root, cpath), attrs);
                     }
                 }
-                else if (we.kind() == ExtendedWatchEventKind.ENTRY_RENAME_FROM) {
-                    rpath = (Path) we.context();
+                else if (we.getKind() == WatchBackend.Kind.RENAME_FROM) {
+                    rroot = root;
+                    rpath = cpath;
                 }
-                else if (we.kind() == ExtendedWatchEventKind.ENTRY_RENAME_TO) {
-                    Path cpath = (Path) we.context();
-                    BasicFileAttributes attrs = getAttributes(root, cpath);
-                    if (attrs != null && acceptPath(cpath, attrs)) {
-                        if (rpath != null) {
-                            fe = new FileEvent(channel, root, rpath.toString(), cpath.toString(), FileEvent.Type.RENAME);
-                            dbManager.getCurMap().remove(rpath.toString());
-                            dbManager.getCurMap().put(cpath.toString(), Long.valueOf(attrs.lastModifiedTime().toMillis()));
-                        }
-                        else {
-                            logger.warn(channel.getId() + " - Unvalid rename event: {}", cpath.toString());
-                        }
+                else if (we.getKind() == WatchBackend.Kind.RENAME_TO) {
+                    BasicFileAttributes attrs = getAttributes(stats, root, cpath);
+                    String fromPath = rpath;
+                    rpath = null;
+                    if (fromPath == null) {
+                        // Its RENAME_FROM was lost, the directory is rescanned
+                        logger.warn(channel.getId() + " - Unvalid rename event: {}", cpath);
+                        scheduleRescan(root, FilenameUtils.getPathNoEndSeparator(cpath));
+                    }
+                    else if (attrs != null && acceptPath(cpath, attrs)) {
+                        fe = new FileEvent(channel, root, fromPath, cpath, FileEvent.Type.RENAME);
+                        String fromKey = KeyCodec.toKey(root, fromPath);
+                        String toKey = KeyCodec.toKey(root, cpath);
+                        removeState(dbManager, fromKey);
+                        putState(dbManager, toKey, attrs);
+                        updateSubtree(dbManager, root, fromKey, toKey);
                     }
                 }
-                // StandardWatchEventKind.OVERFLOW
+                // WatchBackend.Kind.OVERFLOW: the events of the directory are
+                // lost, its subtree is rescanned before the next poll. A rename
+                // waiting for its RENAME_TO may have lost it: the directory it
+                // was renamed from is rescanned too
                 else {
-                    Path cpath = (Path) we.context();
-                    BasicFileAttributes attrs = getAttributes(root, cpath);
-                    if (acceptPath(cpath, attrs)) {
-                        fe = new FileEvent(channel, root, cpath.toString(), FileEvent.Type.UNKNOWN);
+                    if (rpath != null) {
+                        scheduleRescan(rroot, FilenameUtils.getPathNoEndSeparator(rpath));
+                        rpath = null;
+                    }
+                    if (cpath.isEmpty() || acceptPath(cpath, getAttributes(stats, root, cpath))) {
+                        scheduleRescan(root, cpath);
                     }
                 }
 
@@ -243,51 +438,379 @@ public class FileWatcher implements Runnable {
                     fileListeners.firechange(fe);
                 }
             }
-            dbManager.commit();
-            if (counter > 10000) {
-                log("Compacting database " + dbPath);
-                dbManager.compact();
-                counter = 0;
+            // The kept updates are committed once compacted
+            if (updates.isEmpty() && !compactor.isRunning()) {
+                if (committer != null) {
+                    committer.updated(updateCount);
+                }
+                else {
+                    dbManager.commit();
+                }
+                updateCount = 0;
             }
+
+            if (compactor.isDue()) {
+                log("Compacting database " + dbPath + " - fragmentation: " + Math.round(dbManager.getFragmentation() * 100) + "%");
+                if (committer != null) {
+                    committer.flush();
+                }
+                compactor.start();
+            }
+        }
+        compactor.close();
+        if (!rescans.isEmpty()) {
+            log(rescans.size() + " pending rescans dropped, the next spool reports their changes");
+        }
+        if (!updates.isEmpty()) {
+            writeUpdates(dbManager, committer);
+        }
+        if (committer != null) {
+            committer.close();
+        }
+        if (resolver != null) {
+            resolver.close();
+        }
+        if (index != null) {
+            index.close();
+        }
+        if (outbox != null) {
+            fileListeners.removeListener(outbox);
         }
         close();
+        if (intake != null) {
+            RUNNING.remove(this);
+            log(intake.getStatus());
+        }
         watcherListeners.firechange(new RunEvent(channel, RunEvent.Type.STOP, "Watcher stopped"));
     }
 
-    private BasicFileAttributes getAttributes(String root, Path cpath) {
-        try {
-            java.nio.file.Path path = java.nio.file.Paths.get(root + "/" + cpath.toString());
-            if (Files.exists(path)) {
-                return Files.readAttributes(path, BasicFileAttributes.class);
+    private void putState(DbManager dbManager, String key, BasicFileAttributes attrs) {
+        long fileKey = dbConfig.isFingerprints() ? GenerationMap.getFileKey(attrs) : 0;
+        putState(dbManager, key, new long[]{attrs.lastModifiedTime().toMillis(), attrs.size(), fileKey});
+    }
+
+    // state: {last modified time, size, file key}
+    private void putState(DbManager dbManager, String key, long[] state) {
+        if (updates.isEmpty() && !compactor.isRunning()) {
+            dbManager.getFileMap().put(key, state[0], state[1], state[2]);
+            updateCount++;
+        }
+        else {
+            updates.put(key, state);
+        }
+    }
+
+    // The stored state of a key, from the kept updates or the file map, null
+    // if it is not stored
+    private long[] getState(DbManager dbManager, String key) {
+        if (updates.containsKey(key)) {
+            return updates.get(key);
+        }
+        Object value = dbManager.getFileMap().get(key);
+        if (value == null) {
+            return null;
+        }
+        if (GenerationMap.hasFingerprint(value)) {
+            return new long[]{GenerationMap.getTime(value), GenerationMap.getSize(value), GenerationMap.getFileKey(value)};
+        }
+        return new long[]{GenerationMap.getTime(value), 0, 0};
+    }
+
+    // A null value stands for a removal in the kept updates
+    private void removeState(DbManager dbManager, String key) {
+        if (updates.isEmpty() && !compactor.isRunning()) {
+            dbManager.getFileMap().remove(key);
+            updateCount++;
+        }
+        else {
+            updates.put(key, null);
+        }
+    }
+
+    // Writes the updates kept while the database was compacted
+    private void writeUpdates(DbManager dbManager, GroupCommitter committer) {
+        GenerationMap fileMap = dbManager.getFileMap();
+        for (Map.Entry<String, long[]> entry : updates.entrySet()) {
+            long[] value = entry.getValue();
+            if (value == null) {
+                fileMap.remove(entry.getKey());
+            }
+            else {
+                fileMap.put(entry.getKey(), value[0], value[1], value[2]);
             }
         }
-        catch (IOException ex) {
-            logger.warn(channel.getId(), ex);
+        log(updates.size() + " updates written after compaction");
+        if (committer != null) {
+            committer.updated(updates.size());
+        }
+        else {
+            dbManager.commit();
+        }
+        updates.clear();
+    }
+
+    // The pending subtrees are collapsed to the top-most ones by rescan()
+    private void scheduleRescan(String root, String cpath) {
+        if (rescans.isEmpty()) {
+            rescanTime = System.currentTimeMillis();
+        }
+        rescans.put(KeyCodec.toKey(root, cpath), root);
+    }
+
+    // The pending subtrees not below another one. In the path order, the keys
+    // below a key follow it.
+    private LinkedHashMap<String, String> getTopRescans() {
+        TreeMap<String, String> sorted = new TreeMap<>(PathComparator.INSTANCE);
+        sorted.putAll(rescans);
+        LinkedHashMap<String, String> tops = new LinkedHashMap<>();
+        String last = null;
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            if (last == null || !isAncestorOrSelf(last, entry.getKey())) {
+                last = entry.getKey();
+                tops.put(last, entry.getValue());
+            }
         }
-        return null;
+        return tops;
     }
 
-    private boolean acceptPath(Path cpath, BasicFileAttributes attrs) {
+    private static boolean isAncestorOrSelf(String key, String other) {
+        return other.startsWith(key) && (other.length() == key.length()
+                                         || key.charAt(key.length() - 1) == SEPARATOR || other.charAt(key.length()) == SEPARATOR);
+    }
 
-        String name = FilenameUtils.getName(cpath.toString());
+    // Walks the subtrees whose events were lost against the file map: the new
+    // and modified entries are fired by the FileWalker, then the entries of the
+    // map which were not walked are removed and fired as deleted
+    private void rescan(DbManager dbManager, GroupCommitter committer) {
+        GenerationMap fileMap = dbManager.getFileMap();
+        LinkedHashMap<String, String> tops = getTopRescans();
+        if (tops.size() < rescans.size()) {
+            log(rescans.size() + " pending rescans collapsed to " + tops.size() + " subtrees");
+        }
+        rescans.clear();
+        // Read once without the subtree index
+        Map<String, ArrayList<String>> subtreeKeys = null;
+        DirectoryListener directoryListener = backend instanceof DirectoryListener ? (DirectoryListener) backend : null;
+        int count = 0;
+        for (Map.Entry<String, String> entry : tops.entrySet()) {
+            long time = System.currentTimeMillis();
+            String key = entry.getKey();
+            String root = entry.getValue();
+            Path rootPath = Paths.get(root);
+            Path dir = Paths.get(key);
+
+            HashSet<String> visitedKeys = new HashSet<>();
+            FileWalker walker = new FileWalker(channel, fileListeners, rootPath, fileMap, filter, 0);
+            walker.setFingerprints(dbConfig.isFingerprints());
+            walker.setDevice(IoBudget.getInstance().getDevice(rootPath));
+            walker.setVisitedKeys(visitedKeys);
+            // The new directories are registered with the backend
+            walker.setDirectoryListener(directoryListener);
+            boolean walked = true;
+            try {
+                if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+                    int depth = maxDepth > 0 ? Math.max(0, maxDepth - (dir.getNameCount() - rootPath.getNameCount())) : Integer.MAX_VALUE;
+                    Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), depth, walker);
+                }
+            }
+            catch (IOException ex) {
+                // The missing entries are unknown
+                logger.warn(channel.getId() + " - Unable to rescan " + key, ex);
+                walked = false;
+            }
+
+            int removed = 0;
+            if (walked) {
+                if (!key.equals(root) && !visitedKeys.contains(key) && fileMap.get(key) != null) {
+                    fileMap.remove(key);
+                    if (index != null) {
+                        index.remove(key);
+                    }
+                    fileListeners.firechange(new FileEvent(channel, root, KeyCodec.relativize(root, key), FileEvent.Type.DELETE));
+                    removed++;
+                }
+                // The range of the index is read lazily, the removed keys are
+                // removed from it by the iterator
+                boolean indexed = index != null;
+                Iterator<String> oldKeys;
+                if (indexed) {
+                    oldKeys = index.descendants(key);
+                }
+                else {
+                    if (subtreeKeys == null) {
+                        subtreeKeys = getSubtreeKeys(fileMap, tops.keySet());
+                    }
+                    oldKeys = subtreeKeys.get(key).iterator();
+                }
+                while (oldKeys.hasNext()) {
+                    String oldKey = oldKeys.next();
+                    if (!visitedKeys.contains(oldKey)) {
+                        fileMap.remove(oldKey);
+                        if (indexed) {
+                            oldKeys.remove();
+                        }
+                        fileListeners.firechange(new FileEvent(channel, root, KeyCodec.relativize(root, oldKey), FileEvent.Type.DELETE));
+                        removed++;
+                    }
+                }
+            }
+            for (String visitedKey : visitedKeys) {
+                if (!addToIndex(visitedKey)) {
+                    break;
+                }
+            }
+            count += visitedKeys.size() + removed;
+            log("Rescan of " + key + " after an overflow: " + visitedKeys.size() + " entries - " + removed + " removed in "
+                + (System.currentTimeMillis() - time) + " ms");
+        }
+        if (committer != null) {
+            committer.updated(count);
+        }
+        else {
+            dbManager.commit();
+        }
+    }
+
+    // The keys below each of the disjoint subtrees without the subtree index:
+    // a single pass over the map looking up the subtree of each key
+    private Map<String, ArrayList<String>> getSubtreeKeys(GenerationMap fileMap, Set<String> subtrees) {
+        HashMap<String, ArrayList<String>> keys = new HashMap<>();
+        for (String key : subtrees) {
+            keys.put(key, new ArrayList<>());
+        }
+
+        // Only a subtree may be before a key below it in the path order
+        TreeSet<String> sorted = new TreeSet<>(PathComparator.INSTANCE);
+        sorted.addAll(subtrees);
+        for (String mapKey : fileMap.getMap().keySet()) {
+            String key = sorted.floor(mapKey);
+            if (key != null && mapKey.length() > key.length() && isAncestorOrSelf(key, mapKey)) {
+                keys.get(key).add(mapKey);
+            }
+        }
+        return keys;
+    }
+
+    // Removes the entries below a deleted directory, or moves them below its
+    // new path with their stored state: a rename does not change them, so
+    // they are not read again
+    private void updateSubtree(DbManager dbManager, String root, String fromKey, String toKey) {
+        if (index == null) {
+            return;
+        }
+
+        index.remove(fromKey);
+        if (toKey != null) {
+            addToIndex(toKey);
+        }
+
+        // The range is read by batches, so a large subtree is not held in the heap
+        int count = 0;
+        ArrayList<String> keys;
+        while (index != null && !(keys = index.removeDescendants(fromKey, SUBTREE_BATCH)).isEmpty()) {
+            for (String key : keys) {
+                long[] state = toKey != null ? getState(dbManager, key) : null;
+                removeState(dbManager, key);
+                String path = KeyCodec.relativize(root, key);
+                if (state != null) {
+                    String newKey = toKey + key.substring(fromKey.length());
+                    putState(dbManager, newKey, state);
+                    addToIndex(newKey);
+                    if (childEvents) {
+                        fileListeners.firechange(new FileEvent(channel, root, path, KeyCodec.relativize(root, newKey), FileEvent.Type.RENAME));
+                    }
+                }
+                else if (childEvents) {
+                    fileListeners.firechange(new FileEvent(channel, root, path, FileEvent.Type.DELETE));
+                }
+            }
+            count += keys.size();
+        }
+        if (count > 0) {
+            log(count + " entries " + (toKey == null ? "removed below " : "moved below ") + fromKey);
+        }
+    }
+
+    // Once the subtree index is full, it is dropped: the entries below a
+    // deleted or renamed directory are then left to the next spool check
+    private boolean addToIndex(String key) {
+        if (index == null) {
+            return false;
+        }
+        if (!index.add(key)) {
+            logger.warn(channel.getId() + " - The subtree index is full, it is dropped: " + index.size() + " entries");
+            index = null;
+            return false;
+        }
+        return true;
+    }
+
+    // The keys of the events whose attributes are read, once each
+    private static LinkedHashSet<String> getStatKeys(List<WatchBackend.Event> events) {
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        for (WatchBackend.Event we : events) {
+            WatchBackend.Kind kind = we.getKind();
+            if (kind == WatchBackend.Kind.CREATE || kind == WatchBackend.Kind.MODIFY || kind == WatchBackend.Kind.RENAME_TO) {
+                keys.add(KeyCodec.toKey(we.getRoot(), we.getPath()));
+            }
+        }
+        return keys;
+    }
+
+    // Read by the stat resolver for the batch, or now
+    private BasicFileAttributes getAttributes(Map<String, BasicFileAttributes> stats, String root, String cpath) {
+        String key = KeyCodec.toKey(root, cpath);
+        if (stats != null && stats.containsKey(key)) {
+            return stats.get(key);
+        }
+        return getAttributes(Paths.get(key));
+    }
+
+    // Null if the path is gone
+    private BasicFileAttributes getAttributes(Path path) {
+        return StatResolver.readAttributes(channel.getId(), path);
+    }
+
+    private boolean acceptPath(String cpath, BasicFileAttributes attrs) {
 
         if (attrs != null && !attrs.isDirectory()
-            && includePattern != null && !includePattern.matcher(name).matches()) {
+            && includePattern != null && !includePattern.matcher(FilenameUtils.getName(cpath)).matches()) {
             return false;
         }
+        return acceptPath(cpath, attrs != null && attrs.isDirectory());
+    }
+
+    private boolean acceptPath(String cpath, boolean isDirectory) {
+
+        String name = FilenameUtils.getName(cpath);
 
         if (excludePattern != null && excludePattern.matcher(name).matches()) {
             return false;
         }
 
-        return true;
+        // The context is relative to the watched root
+        return !filter.hasDirectoryRules() || filter.acceptRelative(cpath, isDirectory);
+    }
+
+    // A deleted path cannot be read: it was a directory if the dir map of the
+    // spooler or the subtree index knows it as one. A path which was never
+    // stored must be accepted both as a file and as a directory, as the
+    // excluded directories are not stored.
+    private boolean acceptDeleted(DbManager dbManager, String key, String cpath) {
+        if (!filter.hasDirectoryRules() || dbManager.getDirMap().containsKey(key) || (index != null && index.hasChildren(key))) {
+            return acceptPath(cpath, true);
+        }
+        if (updates.get(key) != null || dbManager.getFileMap().get(key) != null) {
+            return acceptPath(cpath, false);
+        }
+        return acceptPath(cpath, false) && acceptPath(cpath, true);
     }
 
     private void close() {
         try {
-            if (watchService != null) {
-                watchService.close();
-                watchService = null;
+            if (backend != null) {
+                backend.close();
+                backend = null;
             }
         }
         catch (IOException ex) {
@@ -298,7 +821,10 @@ public class FileWatcher implements Runnable {
     public void interrupt() {
         log("Interrupting FileWatcher");
         interrupted = true;
-        if (waiting) {
+        if (intake != null) {
+            intake.wakeup();
+        }
+        else if (waiting) {
             close();
         }
     }
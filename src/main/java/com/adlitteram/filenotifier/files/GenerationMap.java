@@ -0,0 +1,244 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The file map of a database: path -> last modified time tagged with the
+ * generation of the spool that wrote it.
+ * <p>
+ * A spool writes the entries it visits with the current generation, so the
+ * entries left on an older one once it is complete have been deleted and are
+ * removed. Starting a spool only increments the current generation: nothing
+ * is copied or cleared.
+ * <p>
+ * Only the parity of the generation is kept, in the low bit of the stored
+ * value, so an entry is not larger than a plain time. The stale entries are
+ * removed once a spool is complete and the watcher writes with the current
+ * generation, so only the entries of the current spool and of the last one
+ * coexist.
+ * <p>
+ * Invariant: a new generation N+1 only starts once no entry is left on N-1,
+ * otherwise those entries would alias the new generation and their deletion
+ * would never be detected. A complete spool removes them, an interrupted one
+ * is resumed on the same generation, and a spool started again from scratch
+ * first moves every entry to the current generation with touchAll().
+ * <p>
+ * A value is a Long, or a fingerprint {tagged time, size, file key} when the
+ * file key of the entry is known.
+ * <p>
+ * An optional BloomFilter holds the keys written, so the lookup of a new key
+ * does not read the store. The keys written while it is rebuilt are also added
+ * to the new one.
+ */
+public class GenerationMap {
+
+    private static final long GENERATION_MASK = 1;
+
+    private final Map<String, Object> map;
+    private volatile long generation;
+    private volatile BloomFilter filter;
+    private volatile BloomFilter nextFilter;
+
+    public GenerationMap(Map<String, Object> map) {
+        this.map = map;
+    }
+
+    public static long encode(long time, long generation) {
+        return (time << 1) | (generation & GENERATION_MASK);
+    }
+
+    // The time and its generation tag
+    static long getTagged(Object value) {
+        return value instanceof long[] ? ((long[]) value)[0] : (Long) value;
+    }
+
+    public static long getTime(Object value) {
+        return getTagged(value) >> 1;
+    }
+
+    public static boolean hasFingerprint(Object value) {
+        return value instanceof long[];
+    }
+
+    public static long getSize(Object value) {
+        return ((long[]) value)[1];
+    }
+
+    public static long getFileKey(Object value) {
+        return ((long[]) value)[2];
+    }
+
+    // The hash of the file key, device and inode on Unix, never 0: two equal
+    // file keys give the same value, 0 if the file system has no file keys
+    public static long getFileKey(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        if (fileKey == null) {
+            return 0;
+        }
+        return (fileKey.hashCode() & 0xFFFFFFFFL) + 1;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    public boolean isCurrent(Object value) {
+        return (getTagged(value) & GENERATION_MASK) == (generation & GENERATION_MASK);
+    }
+
+    // Returns the previous value, use getTime() to read it
+    public Object put(String key, long time) {
+        return write(key, encode(time, generation));
+    }
+
+    // Stores a fingerprint if the file key is known
+    public Object put(String key, long time, long size, long fileKey) {
+        if (fileKey == 0) {
+            return put(key, time);
+        }
+        return write(key, new long[]{encode(time, generation), size, fileKey});
+    }
+
+    private Object write(String key, Object value) {
+        BloomFilter current = filter;
+        if (current == null) {
+            return map.put(key, value);
+        }
+
+        Object previous;
+        if (map instanceof CachedMap && !current.mightContain(key)) {
+            addKey(key);
+            ((CachedMap) map).putNew(key, value);
+            previous = null;
+        }
+        else {
+            addKey(key);
+            previous = map.put(key, value);
+        }
+        // A rebuild may have read the keys meanwhile
+        addKey(key);
+        return previous;
+    }
+
+    // The filter being rebuilt is read first: if it is already gone, the
+    // rebuilt one is the current filter
+    private void addKey(String key) {
+        BloomFilter next = nextFilter;
+        if (next != null) {
+            next.add(key);
+        }
+        filter.add(key);
+    }
+
+    public Object get(String key) {
+        BloomFilter current = filter;
+        if (current != null && !current.mightContain(key)) {
+            return null;
+        }
+        return map.get(key);
+    }
+
+    public Object remove(String key) {
+        return map.remove(key);
+    }
+
+    // Moves an entry to the current generation, returns false if it is not found
+    public boolean touch(String key) {
+        Object value = get(key);
+        if (value == null) {
+            return false;
+        }
+        if (!isCurrent(value)) {
+            if (hasFingerprint(value)) {
+                put(key, getTime(value), getSize(value), getFileKey(value));
+            }
+            else {
+                put(key, getTime(value));
+            }
+        }
+        return true;
+    }
+
+    // Moves every entry to the current generation in a single pass over the
+    // map, in the order of the store. Called before a new generation starts if
+    // the stale entries of the last one were not removed, and by the sorted
+    // spool for the unchanged entries once the deleted ones are removed.
+    public int touchAll() {
+        int count = 0;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if (value != null && !isCurrent(value)) {
+                if (hasFingerprint(value)) {
+                    put(entry.getKey(), getTime(value), getSize(value), getFileKey(value));
+                }
+                else {
+                    put(entry.getKey(), getTime(value));
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Called once a spool is complete
+    public int removeStale() {
+        int count = 0;
+        Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (!isCurrent(iterator.next().getValue())) {
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public Map<String, Object> getMap() {
+        return map;
+    }
+
+    // Null if the keys are not filtered
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(BloomFilter filter) {
+        this.filter = filter;
+    }
+
+    // Replaces the filter by one sized from the current key count
+    public synchronized void rebuildFilter() {
+        BloomFilter next = BloomFilter.create(map.size());
+        nextFilter = next;
+        for (String key : map.keySet()) {
+            next.add(key);
+        }
+        filter = next;
+        nextFilter = null;
+    }
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Commits the watcher updates of a database in a background thread.
+ * <p>
+ * A commit runs when the oldest uncommitted update is older than the max delay
+ * or when the max count of updates is reached. The updates arriving while a
+ * commit runs are grouped in the next one. When the count is reached while a
+ * commit is running, updated() waits for it. Once the count is reached,
+ * updated() also waits until the commit thread has taken the pending updates,
+ * so a crash loses at most twice the max count of updates, or the updates of
+ * the last max delay plus the duration of a commit.
+ */
+public class GroupCommitter implements Runnable {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final DbManager dbManager;
+    private final long maxDelay;
+    private final int maxCount;
+    private final Thread thread;
+    private int pending;
+    private long firstUpdateTime;
+    private boolean committing;
+    private boolean closed;
+    private long commitCount;
+
+    public GroupCommitter(DbManager dbManager, String name, long maxDelay, int maxCount) {
+        this.dbManager = dbManager;
+        this.maxDelay = Math.max(1, maxDelay);
+        this.maxCount = Math.max(0, maxCount);
+        this.thread = new Thread(this, "GroupCommitter-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Called by the watcher once the updates have been written to the maps
+    public synchronized void updated(int count) {
+        if (count <= 0) {
+            return;
+        }
+        // The pending count itself is waited on, a commit not started yet
+        // cannot let it grow past the bound
+        while (maxCount > 0 && pending >= maxCount && !closed) {
+            try {
+                notifyAll();
+                wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (pending == 0) {
+            firstUpdateTime = System.currentTimeMillis();
+        }
+        pending += count;
+        notifyAll();
+    }
+
+    // Commits the pending updates in the caller thread, no commit runs after
+    // until the next update
+    public synchronized void flush() {
+        while (committing) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (pending > 0) {
+            pending = 0;
+            dbManager.commit();
+            commitCount++;
+        }
+    }
+
+    private boolean isDue(long time) {
+        return pending > 0 && ((maxCount > 0 && pending >= maxCount) || time - firstUpdateTime >= maxDelay);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                long time = System.currentTimeMillis();
+                while (!closed && !isDue(time)) {
+                    try {
+                        wait(pending > 0 ? Math.max(1, firstUpdateTime + maxDelay - time) : 0);
+                    }
+                    catch (InterruptedException ex) {
+                        closed = true;
+                    }
+                    time = System.currentTimeMillis();
+                }
+                if (closed && pending == 0) {
+                    break;
+                }
+                pending = 0;
+                committing = true;
+                notifyAll();
+            }
+
+            try {
+                dbManager.commit();
+            }
+            catch (RuntimeException | Error ex) {
+                LOGGER.warn("GroupCommitter.run(): ", ex);
+            }
+            finally {
+                synchronized (this) {
+                    committing = false;
+                    commitCount++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    // Commits the last updates and stops the thread
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+}
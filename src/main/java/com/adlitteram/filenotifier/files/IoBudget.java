@@ -0,0 +1,200 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the spool I/O of all the channels. For each device (file store) it
+ * limits the number of stat operations per second and the number of spoolers
+ * walking the device at the same time.
+ * <p>
+ * Both limits are disabled by default and are set with the ioBudget element of
+ * channels.xml.
+ */
+public class IoBudget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoBudget.class);
+    private static final IoBudget INSTANCE = new IoBudget();
+
+    private final ConcurrentHashMap<Object, Device> devices = new ConcurrentHashMap<>();
+    private volatile int statRate = 0;
+    private volatile int maxWalkers = 0;
+
+    public static IoBudget getInstance() {
+        return INSTANCE;
+    }
+
+    // Must be called before the channels are started
+    public void configure(int statRate, int maxWalkers) {
+        LOGGER.info("I/O budget: " + statRate + " stats/s - " + maxWalkers + " walkers per device");
+        this.statRate = Math.max(0, statRate);
+        this.maxWalkers = Math.max(0, maxWalkers);
+    }
+
+    public int getStatRate() {
+        return statRate;
+    }
+
+    public int getMaxWalkers() {
+        return maxWalkers;
+    }
+
+    public Device getDevice(Path path) {
+        Object key;
+        String name;
+        try {
+            FileStore store = Files.getFileStore(path);
+            key = store;
+            name = store.toString();
+        }
+        catch (IOException ex) {
+            LOGGER.warn("Unable to get the device of " + path + ": " + ex.getMessage());
+            key = path.getRoot() == null ? path : path.getRoot();
+            name = key.toString();
+        }
+        final String deviceName = name;
+        return devices.computeIfAbsent(key, k -> new Device(deviceName, statRate, maxWalkers));
+    }
+
+    public String getStatus() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("I/O budget: ").append(statRate).append(" stats/s - ").append(maxWalkers).append(" walkers per device");
+        for (Device device : devices.values()) {
+            buffer.append(System.lineSeparator()).append("  ").append(device);
+        }
+        return buffer.toString();
+    }
+
+    public static class Device {
+
+        private final String name;
+        private final int statRate;
+        private final int maxWalkers;
+        private final Semaphore walkers;
+        private final AtomicInteger activeWalkers = new AtomicInteger();
+        private final AtomicInteger waitingWalkers = new AtomicInteger();
+        private final AtomicLong statCount = new AtomicLong();
+        private final AtomicLong throttleTime = new AtomicLong();
+        private double tokens;
+        private long refillTime;
+
+        Device(String name, int statRate, int maxWalkers) {
+            this.name = name;
+            this.statRate = statRate;
+            this.maxWalkers = maxWalkers;
+            this.walkers = maxWalkers > 0 ? new Semaphore(maxWalkers, true) : null;
+            this.tokens = statRate;
+            this.refillTime = System.nanoTime();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Returns false if the spooler has been interrupted while waiting
+        public boolean acquireWalker(BooleanSupplier interrupted) {
+            if (walkers != null) {
+                waitingWalkers.incrementAndGet();
+                try {
+                    while (!walkers.tryAcquire(1, TimeUnit.SECONDS)) {
+                        if (interrupted.getAsBoolean()) {
+                            return false;
+                        }
+                    }
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                finally {
+                    waitingWalkers.decrementAndGet();
+                }
+            }
+            activeWalkers.incrementAndGet();
+            return true;
+        }
+
+        public void releaseWalker() {
+            activeWalkers.decrementAndGet();
+            if (walkers != null) {
+                walkers.release();
+            }
+        }
+
+        // Token bucket holding one second of stats: a caller waits until its token is available
+        public void acquireStat() {
+            statCount.incrementAndGet();
+            if (statRate <= 0) {
+                return;
+            }
+
+            long wait;
+            synchronized (this) {
+                long time = System.nanoTime();
+                tokens = Math.min(statRate, tokens + (time - refillTime) * (double) statRate / 1e9d);
+                refillTime = time;
+                tokens -= 1;
+                wait = tokens >= 0 ? 0 : (long) (-tokens * 1e9d / statRate);
+            }
+
+            if (wait > 0) {
+                throttleTime.addAndGet(wait);
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        public int getActiveWalkers() {
+            return activeWalkers.get();
+        }
+
+        public int getWaitingWalkers() {
+            return waitingWalkers.get();
+        }
+
+        public long getStatCount() {
+            return statCount.get();
+        }
+
+        public long getThrottleTime() {
+            return TimeUnit.NANOSECONDS.toMillis(throttleTime.get());
+        }
+
+        public synchronized boolean isThrottled() {
+            double available = tokens + (System.nanoTime() - refillTime) * (double) statRate / 1e9d;
+            return (statRate > 0 && available < 0) || waitingWalkers.get() > 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + " - walkers: " + getActiveWalkers() + "/" + (maxWalkers > 0 ? maxWalkers : "-")
+                   + " - waiting: " + getWaitingWalkers() + " - stats: " + getStatCount()
+                   + " - throttled: " + getThrottleTime() + " ms" + (isThrottled() ? " (throttling)" : "");
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import name.pachler.nio.file.ClosedWatchServiceException;
+import name.pachler.nio.file.FileSystems;
+import name.pachler.nio.file.Path;
+import name.pachler.nio.file.Paths;
+import name.pachler.nio.file.StandardWatchEventKind;
+import name.pachler.nio.file.WatchEvent;
+import name.pachler.nio.file.WatchKey;
+import name.pachler.nio.file.WatchService;
+import name.pachler.nio.file.ext.ExtendedWatchEventKind;
+import name.pachler.nio.file.ext.ExtendedWatchEventModifier;
+
+/**
+ * A WatchBackend registering each root with jpathwatch.
+ * <p>
+ * The roots are registered with the FILE_TREE modifier, which watches their
+ * subtree on Windows only: elsewhere, only the changes of the root directory
+ * are reported. The extended mode also reports the renames.
+ */
+public class JPathWatchBackend implements WatchBackend {
+
+    private static final WatchEvent.Kind[] WEK1 = new WatchEvent.Kind[]{
+        StandardWatchEventKind.ENTRY_CREATE,
+        StandardWatchEventKind.ENTRY_DELETE,
+        StandardWatchEventKind.ENTRY_MODIFY,
+        ExtendedWatchEventKind.ENTRY_RENAME_FROM,
+        ExtendedWatchEventKind.ENTRY_RENAME_TO,
+        StandardWatchEventKind.OVERFLOW};
+
+    private static final WatchEvent.Kind[] WEK2 = new WatchEvent.Kind[]{
+        StandardWatchEventKind.ENTRY_CREATE,
+        StandardWatchEventKind.ENTRY_DELETE,
+        StandardWatchEventKind.ENTRY_MODIFY,
+        StandardWatchEventKind.OVERFLOW};
+
+    private static final WatchEvent.Modifier[] WEM = new WatchEvent.Modifier[]{
+        ExtendedWatchEventModifier.FILE_TREE};
+
+    private final WatchEvent.Kind[] eventKinds;
+    private final WatchEvent.Modifier[] eventModifiers;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    public JPathWatchBackend(boolean extended) {
+        this(extended ? WEK1 : WEK2, WEM);
+    }
+
+    public JPathWatchBackend(WatchEvent.Kind[] eventKinds, WatchEvent.Modifier[] eventModifiers) {
+        this.eventKinds = eventKinds;
+        this.eventModifiers = eventModifiers;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    @Override
+    public synchronized void addRoot(java.nio.file.Path root) throws IOException {
+        Path cpath = Paths.get(root.toString());
+        WatchKey key = cpath.register(watchService, eventKinds, eventModifiers);
+        keys.put(key, cpath);
+    }
+
+    @Override
+    public synchronized void removeRoot(java.nio.file.Path root) {
+        Path cpath = Paths.get(root.toString());
+        for (Map.Entry<WatchKey, Path> entry : keys.entrySet()) {
+            if (entry.getValue().equals(cpath)) {
+                entry.getKey().cancel();
+                keys.remove(entry.getKey());
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void start(PathFilter filter) {
+        // The roots are registered when added
+    }
+
+    @Override
+    public List<Event> poll(long timeout) throws InterruptedException {
+        WatchKey signalledKey;
+        try {
+            signalledKey = timeout < 0 ? watchService.take() : watchService.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ClosedWatchServiceException ex) {
+            throw new java.nio.file.ClosedWatchServiceException();
+        }
+        if (signalledKey == null) {
+            return null;
+        }
+
+        Path rootPath;
+        synchronized (this) {
+            rootPath = keys.get(signalledKey);
+        }
+        List<WatchEvent<?>> watchEventList = signalledKey.pollEvents();
+
+        // VERY IMPORTANT! call reset() AFTER pollEvents() to allow the
+        // key to be reported again by the watch service
+        signalledKey.reset();
+
+        ArrayList<Event> events = new ArrayList<>(watchEventList.size());
+        if (rootPath == null) {
+            // Removed meanwhile
+            return events;
+        }
+        String root = rootPath.toString();
+        for (WatchEvent<?> we : watchEventList) {
+            Object context = we.context();
+            String path = context == null ? "" : context.toString();
+            events.add(new Event(getKind(we.kind()), root, path));
+        }
+        return events;
+    }
+
+    private static Kind getKind(WatchEvent.Kind<?> kind) {
+        if (kind == StandardWatchEventKind.ENTRY_CREATE) {
+            return Kind.CREATE;
+        }
+        else if (kind == StandardWatchEventKind.ENTRY_DELETE) {
+            return Kind.DELETE;
+        }
+        else if (kind == StandardWatchEventKind.ENTRY_MODIFY) {
+            return Kind.MODIFY;
+        }
+        else if (kind == ExtendedWatchEventKind.ENTRY_RENAME_FROM) {
+            return Kind.RENAME_FROM;
+        }
+        else if (kind == ExtendedWatchEventKind.ENTRY_RENAME_TO) {
+            return Kind.RENAME_TO;
+        }
+        return Kind.OVERFLOW;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
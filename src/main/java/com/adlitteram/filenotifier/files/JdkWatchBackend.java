@@ -0,0 +1,501 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A WatchBackend registering every directory of the roots with the JDK
+ * WatchService, which watches a single directory per key on Linux.
+ * <p>
+ * A created directory is registered with its subtree when its event is
+ * processed, and its entries are reported as created: they may have been
+ * written before the registration. A deleted directory's key is dropped. The
+ * renames are reported as a deletion and a creation.
+ * <p>
+ * As a DirectoryListener, it registers the directories walked by the spool in
+ * a background thread, and start() only walks the roots whose walk was not
+ * complete. Once started, it registers the directories walked by the rescans
+ * of the watcher. The watches are taken from the WatchBudget: once it is
+ * used, the directories modified last are watched and the others are polled.
+ * A polled directory whose modified time changes is reported as OVERFLOW, and
+ * it is then watched instead of the watched directory active least recently.
+ * The files modified in place in a polled directory are not reported.
+ * <p>
+ * poll() only reads the watch keys: the registration of the created
+ * directories and the scan of the polled ones are run by process(), in the
+ * thread of the watcher. poll() returns an empty list when the polled
+ * directories are due for a scan, and waits at most the poll interval when the
+ * budget is limited, so the directories polled meanwhile are scanned in time.
+ */
+public class JdkWatchBackend implements WatchBackend, DirectoryListener {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(JdkWatchBackend.class);
+
+    // Ends the registration thread
+    private static final Directory END = new Directory(null, null, 0);
+
+    private final WatchService watchService;
+    private final WatchBudget budget;
+    private final ArrayList<Path> roots = new ArrayList<>();
+    private final HashSet<Path> walkedRoots = new HashSet<>();
+    private final Map<WatchKey, Directory> keys = new HashMap<>();
+    // The watched and polled directories
+    private final Map<Path, Directory> directories = new HashMap<>();
+    // The watched directories by activity, kept if the budget is limited
+    private final TreeSet<Directory> watched = new TreeSet<>(Comparator.comparingLong((Directory dir) -> dir.activity).thenComparing(dir -> dir.path));
+    private final LinkedHashSet<Directory> polled = new LinkedHashSet<>();
+    private final LinkedBlockingQueue<Directory> queue = new LinkedBlockingQueue<>();
+    private Thread registrar;
+    private PathFilter filter;
+    private long nextPollTime;
+    // The polled directories are scanned by the next process()
+    private boolean scanDue;
+
+    public JdkWatchBackend() throws IOException {
+        this(WatchBudget.getInstance());
+    }
+
+    public JdkWatchBackend(WatchBudget budget) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.budget = budget;
+    }
+
+    @Override
+    public synchronized void addRoot(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new NotDirectoryException(root.toString());
+        }
+        roots.add(root);
+        if (filter != null) {
+            register(root, root, null);
+        }
+    }
+
+    @Override
+    public synchronized void removeRoot(Path root) {
+        roots.remove(root);
+        Iterator<Directory> iterator = directories.values().iterator();
+        while (iterator.hasNext()) {
+            Directory dir = iterator.next();
+            if (dir.root.equals(root)) {
+                unwatch(dir);
+                if (polled.remove(dir)) {
+                    budget.polled(-1);
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    // Once started, the directories are walked by the rescans of the watcher
+    // and registered in its thread
+    @Override
+    public void visited(Path root, Path dir, BasicFileAttributes attrs) {
+        synchronized (this) {
+            if (filter != null) {
+                if (!directories.containsKey(dir) && roots.contains(root)) {
+                    add(new Directory(root, dir, attrs.lastModifiedTime().toMillis()));
+                }
+                return;
+            }
+            if (registrar == null) {
+                registrar = new Thread(this::registerQueue, "JdkWatchBackend-" + root.getFileName());
+                registrar.setDaemon(true);
+                registrar.start();
+            }
+        }
+        queue.add(new Directory(root, dir, attrs.lastModifiedTime().toMillis()));
+    }
+
+    @Override
+    public synchronized void walked(Path root, boolean complete) {
+        if (complete) {
+            walkedRoots.add(root);
+        }
+    }
+
+    // Registers the directories walked by the spool
+    private void registerQueue() {
+        long time = System.currentTimeMillis();
+        int count = 0;
+        try {
+            for (Directory dir = queue.take(); dir != END; dir = queue.take()) {
+                synchronized (this) {
+                    if (!directories.containsKey(dir.path)) {
+                        add(dir);
+                        count++;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Closed
+        }
+        LOGGER.info(count + " directories registered during the spool in " + (System.currentTimeMillis() - time) + " ms");
+    }
+
+    @Override
+    public void start(PathFilter filter) throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = registrar;
+        }
+        if (thread != null) {
+            queue.add(END);
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            this.filter = filter;
+            for (Path root : roots) {
+                long time = System.currentTimeMillis();
+                if (walkedRoots.contains(root)) {
+                    if (!directories.containsKey(root)) {
+                        add(new Directory(root, root, Files.getLastModifiedTime(root).toMillis()));
+                    }
+                    continue;
+                }
+                int count = register(root, root, null);
+                LOGGER.info(root + " - " + count + " directories registered in " + (System.currentTimeMillis() - time) + " ms");
+            }
+            nextPollTime = System.currentTimeMillis() + budget.getPollInterval();
+            LOGGER.info(keys.size() + " watched directories - " + polled.size() + " polled directories - " + budget.getStatus());
+        }
+    }
+
+    // Registers the new directories of a subtree, their entries are added to
+    // the created events if any, returns the count of registered directories
+    private int register(Path root, Path dir, List<Event> created) throws IOException {
+        int[] count = new int[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                String relative = root.relativize(path).toString();
+                if (!path.equals(dir)) {
+                    if (!filter.acceptRelative(relative, true)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (created != null) {
+                        created.add(new Event(Kind.CREATE, root.toString(), relative));
+                    }
+                }
+                // The entries below the max depth are not reported
+                int depth = relative.isEmpty() ? 0 : path.getNameCount() - root.getNameCount();
+                if (!filter.acceptDepth(depth + 1)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (!directories.containsKey(path)) {
+                    add(new Directory(root, path, attrs.lastModifiedTime().toMillis()));
+                    count[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (created != null) {
+                    created.add(new Event(Kind.CREATE, root.toString(), root.relativize(path).toString()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException ex) {
+                // Deleted meanwhile
+                LOGGER.debug("JdkWatchBackend.register() : " + path, ex);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    // Watches a new directory if the budget allows it, or instead of a less
+    // active one, otherwise polls it
+    private void add(Directory dir) {
+        directories.put(dir.path, dir);
+        if (budget.acquire()) {
+            watch(dir);
+        }
+        else if (!watched.isEmpty() && watched.first().activity < dir.activity) {
+            Directory old = watched.first();
+            unwatch(old);
+            poll(old);
+            if (budget.acquire()) {
+                watch(dir);
+            }
+            else {
+                poll(dir);
+            }
+        }
+        else {
+            poll(dir);
+        }
+    }
+
+    // Called with an acquired watch
+    private void watch(Directory dir) {
+        try {
+            dir.key = dir.path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(dir.key, dir);
+            if (budget.isLimited()) {
+                watched.add(dir);
+            }
+        }
+        catch (NoSuchFileException | NotDirectoryException ex) {
+            budget.release();
+            directories.remove(dir.path);
+        }
+        catch (IOException ex) {
+            // The user limit of the kernel is reached
+            LOGGER.debug("JdkWatchBackend.watch() : " + dir.path, ex);
+            budget.exhausted();
+            poll(dir);
+        }
+    }
+
+    private void unwatch(Directory dir) {
+        if (dir.key != null) {
+            dir.key.cancel();
+            keys.remove(dir.key);
+            watched.remove(dir);
+            dir.key = null;
+            budget.release();
+        }
+    }
+
+    private void poll(Directory dir) {
+        if (polled.add(dir)) {
+            budget.polled(1);
+        }
+    }
+
+    @Override
+    public List<Event> poll(long timeout) throws InterruptedException {
+        long deadline = timeout < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+        while (true) {
+            long limit;
+            synchronized (this) {
+                if (!polled.isEmpty()) {
+                    long time = System.currentTimeMillis();
+                    if (time >= nextPollTime) {
+                        nextPollTime = time + budget.getPollInterval();
+                        scanDue = true;
+                        return new ArrayList<>();
+                    }
+                }
+                // A directory may be polled once the budget is used, by a
+                // registration of another thread: the wait is bounded
+                long next = !polled.isEmpty() ? nextPollTime
+                            : budget.isLimited() ? System.currentTimeMillis() + budget.getPollInterval() : Long.MAX_VALUE;
+                limit = Math.min(deadline, next);
+            }
+
+            WatchKey signalledKey = limit == Long.MAX_VALUE ? watchService.take()
+                                    : watchService.poll(Math.max(1, limit - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (signalledKey != null) {
+                return getEvents(signalledKey);
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return null;
+            }
+        }
+    }
+
+    // Registers the created directories with their subtree, their entries are
+    // reported as created, then scans the polled directories if they are due
+    @Override
+    public synchronized List<Event> process(List<Event> events) {
+        ArrayList<Event> list = new ArrayList<>(events.size());
+        for (Event event : events) {
+            list.add(event);
+            if (event.getKind() == Kind.CREATE) {
+                Path root = Paths.get(event.getRoot());
+                Path path = root.resolve(event.getPath());
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) && filter.acceptRelative(event.getPath(), true)) {
+                    try {
+                        register(root, path, list);
+                    }
+                    catch (IOException ex) {
+                        LOGGER.warn("JdkWatchBackend.process() : " + path, ex);
+                    }
+                }
+            }
+        }
+        if (scanDue) {
+            scanDue = false;
+            list.addAll(scanPolled());
+        }
+        return list;
+    }
+
+    // Reports the polled directories modified since the last scan as OVERFLOW,
+    // registers their new subdirectories and watches them if the budget allows it
+    private List<Event> scanPolled() {
+        long time = System.currentTimeMillis();
+        ArrayList<Directory> changed = new ArrayList<>();
+        Iterator<Directory> iterator = polled.iterator();
+        while (iterator.hasNext()) {
+            Directory dir = iterator.next();
+            try {
+                long modified = Files.getLastModifiedTime(dir.path, LinkOption.NOFOLLOW_LINKS).toMillis();
+                if (modified != dir.modified) {
+                    dir.modified = modified;
+                    changed.add(dir);
+                }
+            }
+            catch (IOException ex) {
+                // Deleted, reported by its parent
+                iterator.remove();
+                directories.remove(dir.path);
+                budget.polled(-1);
+            }
+        }
+
+        ArrayList<Event> events = new ArrayList<>(changed.size());
+        for (Directory dir : changed) {
+            events.add(new Event(Kind.OVERFLOW, dir.root.toString(), dir.root.relativize(dir.path).toString()));
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.path)) {
+                for (Path child : stream) {
+                    if (!directories.containsKey(child) && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)
+                        && filter.acceptRelative(dir.root.relativize(child).toString(), true)) {
+                        register(dir.root, child, null);
+                    }
+                }
+            }
+            catch (IOException ex) {
+                LOGGER.debug("JdkWatchBackend.scanPolled() : " + dir.path, ex);
+            }
+            // An active directory is watched instead of the least active one
+            dir.activity = time;
+            if (polled.remove(dir)) {
+                budget.polled(-1);
+                add(dir);
+            }
+        }
+        if (!changed.isEmpty()) {
+            LOGGER.info(changed.size() + " polled directories modified in " + (System.currentTimeMillis() - time) + " ms");
+        }
+        return events;
+    }
+
+    private synchronized List<Event> getEvents(WatchKey signalledKey) {
+        Directory dir = keys.get(signalledKey);
+        List<WatchEvent<?>> watchEventList = signalledKey.pollEvents();
+        // The key of a deleted directory is no longer valid
+        if (!signalledKey.reset() && dir != null) {
+            unwatch(dir);
+            directories.remove(dir.path);
+        }
+
+        ArrayList<Event> events = new ArrayList<>(watchEventList.size());
+        if (dir == null) {
+            return events;
+        }
+        if (watched.remove(dir)) {
+            dir.activity = System.currentTimeMillis();
+            watched.add(dir);
+        }
+        String root = dir.root.toString();
+        for (WatchEvent<?> we : watchEventList) {
+            if (we.kind() == StandardWatchEventKinds.OVERFLOW) {
+                events.add(new Event(Kind.OVERFLOW, root, dir.root.relativize(dir.path).toString()));
+                continue;
+            }
+
+            Path path = dir.path.resolve((Path) we.context());
+            String relative = dir.root.relativize(path).toString();
+            if (we.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                events.add(new Event(Kind.CREATE, root, relative));
+            }
+            else if (we.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                events.add(new Event(Kind.DELETE, root, relative));
+            }
+            else {
+                events.add(new Event(Kind.MODIFY, root, relative));
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void close() throws IOException {
+        queue.add(END);
+        synchronized (this) {
+            for (Directory dir : directories.values()) {
+                unwatch(dir);
+            }
+            budget.polled(-polled.size());
+            polled.clear();
+            directories.clear();
+        }
+        watchService.close();
+    }
+
+    private static class Directory {
+
+        private final Path root;
+        private final Path path;
+        // The last modified time, or the time of the last event
+        private long activity;
+        private long modified;
+        // Null if polled
+        private WatchKey key;
+
+        Directory(Path root, Path path, long modified) {
+            this.root = root;
+            this.path = path;
+            this.activity = modified;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.nio.file.Path;
+
+/**
+ * The keys of the file map: the path of the entry below its root, as walked
+ * by the spooler. The watcher builds the same key from its root and the
+ * relative context of its events.
+ */
+class KeyCodec {
+
+    private static final char SEPARATOR = PathComparator.SEPARATOR;
+
+    private KeyCodec() {
+    }
+
+    static String toKey(Path path) {
+        return path.toString();
+    }
+
+    static String toKey(String root, String relative) {
+        if (relative.isEmpty()) {
+            return root;
+        }
+        return root.charAt(root.length() - 1) == SEPARATOR ? root + relative : root + SEPARATOR + relative;
+    }
+
+    static String relativize(String root, String key) {
+        if (key.length() == root.length()) {
+            return "";
+        }
+        return key.substring(root.charAt(root.length() - 1) == SEPARATOR ? root.length() : root.length() + 1);
+    }
+}
@@ -0,0 +1,108 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.mapdb.Fun;
+
+/**
+ * Encodes the keys and the values of the LogStore maps.
+ */
+class LogCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte LONG_ARRAY = 5;
+    private static final byte TUPLE2 = 6;
+
+    private LogCodec() {
+    }
+
+    static void write(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long l : array) {
+                out.writeLong(l);
+            }
+        }
+        else if (value instanceof Fun.Tuple2) {
+            Fun.Tuple2<?, ?> tuple = (Fun.Tuple2<?, ?>) value;
+            out.writeByte(TUPLE2);
+            write(out, tuple.a);
+            write(out, tuple.b);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported type: " + value.getClass().getName());
+        }
+    }
+
+    static Object read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readUTF();
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case BOOLEAN:
+                return in.readBoolean();
+            case LONG_ARRAY:
+                int length = in.readInt();
+                if (length < 0 || length > LogStore.MAX_RECORD / 8) {
+                    throw new IOException("Invalid array length: " + length);
+                }
+                long[] array = new long[length];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readLong();
+                }
+                return array;
+            case TUPLE2:
+                Object a = read(in);
+                return Fun.t2(a, read(in));
+            default:
+                throw new IOException("Unknown type: " + type);
+        }
+    }
+}
@@ -0,0 +1,740 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A log structured backend. The maps are held in memory and each change is
+ * appended to a memory mapped segment file, so a commit is a record append
+ * followed by a flush of the dirty pages. All the keys and values live in the
+ * Java heap, the heap must be sized for the whole state: the MapDB backend
+ * with the off-heap cache suits the larger trees.
+ * <p>
+ * A compaction writes the committed content of the maps to a snapshot file in
+ * a background thread, the new changes being appended to a new segment in the
+ * meantime. The snapshot then replaces the older segments. At startup the last
+ * snapshot and the following segments are replayed, the changes not followed
+ * by a commit record are discarded.
+ * <p>
+ * Segment record: int length, int CRC32, payload. Payload: byte operation,
+ * int map id, then the key and the value of the operation.
+ */
+public class LogStore implements StateStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogStore.class);
+
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    // A record and the zero length ending its segment fit in a segment
+    static final int MAX_RECORD = SEGMENT_SIZE - 12;
+    private static final long COMPACT_MIN_RECORDS = 100000;
+    private static final String SEGMENT_EXT = ".seg";
+    private static final String SNAPSHOT_EXT = ".snap";
+    private static final String TEMP_EXT = ".tmp";
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final byte COMMIT = 4;
+    private static final byte MAP = 5;
+    private static final byte DROP = 6;
+    private static final byte ABORT = 7;
+
+    private static final Object ABSENT = new Object();
+
+    private final Path dir;
+    private final HashMap<String, LogMap<?, ?>> maps = new HashMap<>();
+    private final HashMap<Integer, LogMap<?, ?>> mapIds = new HashMap<>();
+    private final ExecutorService compactor;
+    private int nextMapId = 1;
+    private long segmentSeq;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long records;
+    private boolean dirty;
+    private boolean compacting;
+    private volatile boolean closed;
+
+    public LogStore(Path dir) {
+        this.dir = dir;
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LogStore-" + dir.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            open();
+        }
+        catch (IOException ex) {
+            compactor.shutdown();
+            throw new IOError(ex);
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(dir);
+
+        long snapshotSeq = 0;
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_EXT)) {
+                    Files.delete(file);
+                }
+                else if (name.endsWith(SNAPSHOT_EXT)) {
+                    snapshotSeq = Math.max(snapshotSeq, getSeq(name));
+                }
+                else if (name.endsWith(SEGMENT_EXT)) {
+                    segments.put(getSeq(name), file);
+                }
+            }
+        }
+        // A compaction may have stopped before the deletion of the old files
+        deleteFiles(snapshotSeq);
+        segments.headMap(snapshotSeq, true).clear();
+
+        Replay replay = new Replay();
+        if (snapshotSeq > 0) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(getPath(snapshotSeq, SNAPSHOT_EXT)), 65536))) {
+                replay.read(in);
+            }
+        }
+
+        for (Map.Entry<Long, Path> entry : segments.entrySet()) {
+            boolean last = entry.getKey().equals(segments.lastKey());
+            if (!last) {
+                try (FileChannel fc = FileChannel.open(entry.getValue(), StandardOpenOption.READ)) {
+                    replay.read(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+                }
+            }
+            else {
+                openSegment(entry.getKey());
+                replay.read(buffer);
+                // Clears a torn record at the end of the segment
+                ByteBuffer tail = buffer.duplicate();
+                while (tail.hasRemaining()) {
+                    tail.put((byte) 0);
+                }
+            }
+        }
+
+        if (buffer == null) {
+            openSegment(snapshotSeq + 1);
+        }
+        records = replay.count;
+        if (replay.hasPending()) {
+            LOGGER.info(dir + " - Discarding " + replay.pending.size() + " uncommitted records");
+            append(encode(ABORT, 0));
+            buffer.force();
+        }
+        dirty = false;
+        LOGGER.info(dir + " - " + maps.size() + " maps - " + records + " records replayed");
+    }
+
+    private static long getSeq(String name) {
+        return Long.parseLong(name.substring(0, name.indexOf('.')), 16);
+    }
+
+    private Path getPath(long seq, String ext) {
+        return dir.resolve(String.format("%016x", seq) + ext);
+    }
+
+    private void openSegment(long seq) throws IOException {
+        segmentSeq = seq;
+        channel = FileChannel.open(getPath(seq, SEGMENT_EXT), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+
+    private void nextSegment() throws IOException {
+        buffer.force();
+        channel.close();
+        openSegment(segmentSeq + 1);
+    }
+
+    // Deletes the segments and the snapshots replaced by the snapshot seq
+    private void deleteFiles(long snapshotSeq) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if ((name.endsWith(SEGMENT_EXT) && getSeq(name) <= snapshotSeq)
+                    || (name.endsWith(SNAPSHOT_EXT) && getSeq(name) < snapshotSeq)) {
+                    try {
+                        Files.delete(file);
+                    }
+                    catch (IOException ex) {
+                        // A segment may still be mapped on some systems
+                        LOGGER.warn("LogStore.deleteFiles(): " + ex.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(byte op, int mapId, Object... args) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            out.writeInt(mapId);
+            if (op == MAP) {
+                out.writeUTF((String) args[0]);
+            }
+            else {
+                for (Object arg : args) {
+                    LogCodec.write(out, arg);
+                }
+            }
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void append(byte[] payload) {
+        if (closed) {
+            throw new IllegalStateException("LogStore is closed: " + dir);
+        }
+
+        try {
+            // Keeps room for the zero length ending the segment
+            if (buffer.remaining() < payload.length + 12) {
+                nextSegment();
+                if (payload.length > MAX_RECORD) {
+                    throw new IllegalStateException("Record too large: " + payload.length);
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new IOError(ex);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        records++;
+        dirty = true;
+    }
+
+    private static void write(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <K, V> Map<K, V> getMap(String name) {
+        LogMap<?, ?> map = maps.get(name);
+        if (map == null) {
+            map = defineMap(name, nextMapId);
+            append(encode(MAP, map.id, name));
+        }
+        return (Map<K, V>) map;
+    }
+
+    private LogMap<?, ?> defineMap(String name, int id) {
+        LogMap<?, ?> map = new LogMap<>(name, id);
+        maps.put(name, map);
+        mapIds.put(id, map);
+        nextMapId = Math.max(nextMapId, id + 1);
+        return map;
+    }
+
+    @Override
+    public synchronized boolean exists(String name) {
+        return maps.containsKey(name);
+    }
+
+    @Override
+    public synchronized void delete(String name) {
+        LogMap<?, ?> map = maps.remove(name);
+        if (map != null) {
+            mapIds.remove(map.id);
+            append(encode(DROP, map.id));
+        }
+    }
+
+    @Override
+    public synchronized void commit() {
+        if (closed) {
+            return;
+        }
+        flush();
+
+        long live = getLiveCount();
+        if (records > COMPACT_MIN_RECORDS && records > 2 * live) {
+            startCompaction();
+        }
+    }
+
+    private void flush() {
+        if (dirty) {
+            append(encode(COMMIT, 0));
+            buffer.force();
+            dirty = false;
+            for (LogMap<?, ?> map : maps.values()) {
+                map.undo.clear();
+            }
+        }
+    }
+
+    // Commits and compacts in the background if the log has old records
+    @Override
+    public synchronized void compact() {
+        if (closed) {
+            return;
+        }
+        flush();
+
+        if (records > getLiveCount() + maps.size() + 1) {
+            startCompaction();
+        }
+    }
+
+    // The records replaced or removed since the last compaction
+    @Override
+    public synchronized double getFragmentation() {
+        return records > 0 ? Math.max(0, 1 - (double) getLiveCount() / records) : 0;
+    }
+
+    private long getLiveCount() {
+        long live = 0;
+        for (LogMap<?, ?> map : maps.values()) {
+            live += map.size();
+        }
+        return live;
+    }
+
+    // Called after a commit: the records of the current segments are all committed
+    private void startCompaction() {
+        if (compacting || closed) {
+            return;
+        }
+
+        long snapshotSeq = segmentSeq;
+        try {
+            nextSegment();
+        }
+        catch (IOException ex) {
+            throw new IOError(ex);
+        }
+        compacting = true;
+        records = 0;
+        ArrayList<LogMap<?, ?>> list = new ArrayList<>(maps.values());
+        compactor.execute(() -> writeSnapshot(snapshotSeq, list));
+    }
+
+    private void writeSnapshot(long snapshotSeq, ArrayList<LogMap<?, ?>> list) {
+        long time = System.currentTimeMillis();
+        Path tmp = getPath(snapshotSeq, SNAPSHOT_EXT + TEMP_EXT);
+        long count = 0;
+        boolean done = false;
+
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536))) {
+
+                for (LogMap<?, ?> map : list) {
+                    write(out, encode(MAP, map.id, map.name));
+                }
+                for (LogMap<?, ?> map : list) {
+                    for (Object key : map.data.keySet()) {
+                        Object value = getCommittedValue(map, key);
+                        if (value != null) {
+                            write(out, encode(PUT, map.id, key, value));
+                            count++;
+                        }
+                        if (closed) {
+                            return;
+                        }
+                    }
+                    // The committed entries removed since the compaction started
+                    for (Map.Entry<Object, Object> entry : getRemovedEntries(map)) {
+                        write(out, encode(PUT, map.id, entry.getKey(), entry.getValue()));
+                        count++;
+                    }
+                }
+                write(out, encode(COMMIT, 0));
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp, getPath(snapshotSeq, SNAPSHOT_EXT), StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            deleteFiles(snapshotSeq);
+            LOGGER.info(dir + " - Compacted to " + count + " entries in " + (System.currentTimeMillis() - time) + " ms");
+        }
+        catch (IOException ex) {
+            LOGGER.warn("LogStore.writeSnapshot(): ", ex);
+        }
+        finally {
+            if (!done) {
+                try {
+                    Files.deleteIfExists(tmp);
+                }
+                catch (IOException ex) {
+                    LOGGER.warn("LogStore.writeSnapshot(): ", ex);
+                }
+            }
+            synchronized (this) {
+                compacting = false;
+                for (LogMap<?, ?> map : maps.values()) {
+                    map.undo.clear();
+                }
+                if (done) {
+                    records += count;
+                }
+            }
+        }
+    }
+
+    private synchronized Object getCommittedValue(LogMap<?, ?> map, Object key) {
+        Object value = map.undo.containsKey(key) ? map.undo.get(key) : map.data.get(key);
+        return value == ABSENT ? null : value;
+    }
+
+    private synchronized ArrayList<Map.Entry<Object, Object>> getRemovedEntries(LogMap<?, ?> map) {
+        ArrayList<Map.Entry<Object, Object>> list = new ArrayList<>();
+        for (Map.Entry<Object, Object> entry : map.undo.entrySet()) {
+            if (entry.getValue() != ABSENT && !map.data.containsKey(entry.getKey())) {
+                list.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+        }
+
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                buffer.force();
+                channel.close();
+            }
+            catch (IOException ex) {
+                LOGGER.warn("LogStore.close(): ", ex);
+            }
+        }
+    }
+
+    public static void destroy(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.warn("LogStore.destroy(): ", ex);
+        }
+    }
+
+    /**
+     * Replays the records, the changes are applied when their commit record is
+     * read.
+     */
+    private class Replay {
+
+        private final ArrayList<Object[]> pending = new ArrayList<>();
+        private long count;
+
+        void read(ByteBuffer in) throws IOException {
+            while (in.remaining() >= 8) {
+                int start = in.position();
+                int length = in.getInt();
+                // The zero ending the segment, or a torn record
+                if (length <= 0 || length > MAX_RECORD || length > in.remaining() - 4) {
+                    in.position(start);
+                    return;
+                }
+                int crc = in.getInt();
+                byte[] payload = new byte[length];
+                in.get(payload);
+                if (!apply(payload, crc)) {
+                    in.position(start);
+                    return;
+                }
+            }
+        }
+
+        // A truncated snapshot is replayed up to its last whole record
+        void read(DataInputStream in) throws IOException {
+            while (true) {
+                int crc;
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        LOGGER.warn(dir + " - Snapshot truncated by an invalid record length: " + length);
+                        return;
+                    }
+                    crc = in.readInt();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                }
+                catch (EOFException ex) {
+                    return;
+                }
+                if (!apply(payload, crc)) {
+                    throw new IOException("Corrupted snapshot");
+                }
+            }
+        }
+
+        private boolean apply(byte[] payload, int crc) throws IOException {
+            CRC32 crc32 = new CRC32();
+            crc32.update(payload);
+            if ((int) crc32.getValue() != crc) {
+                return false;
+            }
+            count++;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte op = in.readByte();
+            int mapId = in.readInt();
+            switch (op) {
+                case MAP:
+                    String name = in.readUTF();
+                    if (!mapIds.containsKey(mapId)) {
+                        defineMap(name, mapId);
+                    }
+                    break;
+                case PUT:
+                    Object key = LogCodec.read(in);
+                    pending.add(new Object[]{op, mapId, key, LogCodec.read(in)});
+                    break;
+                case REMOVE:
+                    pending.add(new Object[]{op, mapId, LogCodec.read(in)});
+                    break;
+                case CLEAR:
+                case DROP:
+                    pending.add(new Object[]{op, mapId});
+                    break;
+                case COMMIT:
+                    for (Object[] record : pending) {
+                        applyRecord(record);
+                    }
+                    pending.clear();
+                    break;
+                case ABORT:
+                    pending.clear();
+                    break;
+                default:
+                    throw new IOException("Unknown operation: " + op);
+            }
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void applyRecord(Object[] record) {
+            LogMap<Object, Object> map = (LogMap<Object, Object>) mapIds.get((Integer) record[1]);
+            if (map == null) {
+                return;
+            }
+            switch ((Byte) record[0]) {
+                case PUT:
+                    map.data.put(record[2], record[3]);
+                    break;
+                case REMOVE:
+                    map.data.remove(record[2]);
+                    break;
+                case CLEAR:
+                    map.data.clear();
+                    break;
+                case DROP:
+                    maps.remove(map.name);
+                    mapIds.remove(map.id);
+                    break;
+            }
+        }
+
+        boolean hasPending() {
+            return !pending.isEmpty();
+        }
+    }
+
+    /**
+     * A map of the store. While a compaction runs, the committed values of the
+     * changed keys are kept in the undo map so that the snapshot only holds
+     * committed changes.
+     */
+    private class LogMap<K, V> extends AbstractMap<K, V> {
+
+        private final String name;
+        private final int id;
+        private final ConcurrentHashMap<K, V> data = new ConcurrentHashMap<>();
+        private final HashMap<Object, Object> undo = new HashMap<>();
+
+        LogMap(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        private void saveUndo(Object key, Object value) {
+            if (compacting && !undo.containsKey(key)) {
+                undo.put(key, value == null ? ABSENT : value);
+            }
+        }
+
+        @Override
+        public V get(Object key) {
+            return data.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            byte[] payload = encode(PUT, id, key, value);
+            synchronized (LogStore.this) {
+                V old = data.put(key, value);
+                saveUndo(key, old);
+                append(payload);
+                return old;
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            synchronized (LogStore.this) {
+                V old = data.remove(key);
+                if (old != null) {
+                    saveUndo(key, old);
+                    append(encode(REMOVE, id, key));
+                }
+                return old;
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (LogStore.this) {
+                if (compacting) {
+                    for (Map.Entry<K, V> entry : data.entrySet()) {
+                        saveUndo(entry.getKey(), entry.getValue());
+                    }
+                }
+                data.clear();
+                append(encode(CLEAR, id));
+            }
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return data.isEmpty();
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    Iterator<Map.Entry<K, V>> iterator = data.entrySet().iterator();
+                    return new Iterator<Map.Entry<K, V>>() {
+
+                        private K key;
+
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<K, V> next() {
+                            Map.Entry<K, V> entry = iterator.next();
+                            key = entry.getKey();
+                            return new AbstractMap.SimpleImmutableEntry<>(key, entry.getValue());
+                        }
+
+                        @Override
+                        public void remove() {
+                            LogMap.this.remove(key);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return data.size();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default backend: a MapDB file database with hash maps.
+ */
+public class MapDbStore implements StateStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDbStore.class);
+
+    private final DB db;
+
+    public MapDbStore(Path dbPath) {
+        db = DBMaker.newFileDB(dbPath.toFile())
+                .closeOnJvmShutdown()
+                .make();
+    }
+
+    @Override
+    public <K, V> Map<K, V> getMap(String name) {
+        return db.getHashMap(name);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return db.exists(name);
+    }
+
+    @Override
+    public void delete(String name) {
+        db.delete(name);
+    }
+
+    @Override
+    public void commit() {
+        db.commit();
+    }
+
+    @Override
+    public void compact() {
+        // Always Commit Before compact
+        db.commit();
+        db.compact();
+    }
+
+    // The free records of the store file
+    @Override
+    public double getFragmentation() {
+        Store engine = Store.forDB(db);
+        long size = engine.getCurrSize();
+        return size > 0 ? (double) engine.getFreeSize() / size : 0;
+    }
+
+    @Override
+    public void close() {
+        db.commit();
+        db.close();
+    }
+
+    public static void destroy(Path dbPath) {
+        try {
+            Files.deleteIfExists(dbPath);
+        }
+        catch (IOException ex) {
+            LOGGER.warn("MapDbStore.destroy(): ", ex);
+        }
+
+        try {
+            Files.deleteIfExists(Paths.get(dbPath + ".p"));
+            Files.deleteIfExists(Paths.get(dbPath + ".t"));
+        }
+        catch (IOException ex) {
+            LOGGER.warn("MapDbStore.destroy(): ", ex);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size cache of path -> long held in a direct buffer, out of the Java
+ * heap.
+ * <p>
+ * A path is stored as a 64 bits hash and a 32 bits check, so the chance that
+ * two cached paths are taken one for the other is negligible. A path may be
+ * stored in the WINDOW slots following its hash. When they are all used, the
+ * slot evicted is chosen by the clock algorithm: each slot has a reference
+ * bit, set on access and cleared when the clock passes over it, so the
+ * recently used entries are kept. It is not thread safe.
+ * <p>
+ * The buffer is clamped to half of the max direct memory of the JVM and to
+ * the int range of a ByteBuffer. The caller handles the OutOfMemoryError if
+ * the buffer still cannot be allocated.
+ * <p>
+ * Slot: long hash, int check, int state, long value.
+ */
+class OffHeapCache {
+
+    private static final int SLOT_SIZE = 24;
+    private static final int WINDOW = 8;
+
+    private static final int EMPTY = 0;
+    private static final int USED = 1;
+    private static final int REFERENCED = 2;
+
+    private final ByteBuffer buffer;
+    private final int mask;
+    private long hits;
+    private long misses;
+
+    OffHeapCache(long bytes) {
+        // A power of 2 of slots, at least one window
+        long slots = Math.max(WINDOW, Long.highestOneBit(Math.max(1, bytes / SLOT_SIZE)));
+        slots = Math.min(slots, Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE));
+        slots = Math.min(slots, Math.max(WINDOW, Long.highestOneBit(Math.max(1, getMaxDirectMemory() / 2 / SLOT_SIZE))));
+        this.buffer = ByteBuffer.allocateDirect((int) slots * SLOT_SIZE);
+        this.mask = (int) slots - 1;
+    }
+
+    // -XX:MaxDirectMemorySize, which defaults to the max heap size
+    static long getMaxDirectMemory() {
+        long max = Runtime.getRuntime().maxMemory();
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-XX:MaxDirectMemorySize=")) {
+                String size = arg.substring(arg.indexOf('=') + 1).trim().toLowerCase();
+                long unit = 1;
+                switch (size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) {
+                    case 'k':
+                        unit = 1024L;
+                        break;
+                    case 'm':
+                        unit = 1024L * 1024L;
+                        break;
+                    case 'g':
+                        unit = 1024L * 1024L * 1024L;
+                        break;
+                    case 't':
+                        unit = 1024L * 1024L * 1024L * 1024L;
+                        break;
+                }
+                try {
+                    long value = Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+                    if (value > 0) {
+                        max = value;
+                    }
+                }
+                catch (NumberFormatException ex) {
+                    // The default is kept
+                }
+            }
+        }
+        return max;
+    }
+
+    // FNV-1a 64 bits
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int find(long hash, int check) {
+        int start = (int) (hash ^ (hash >>> 32)) & mask;
+        for (int i = 0; i < WINDOW; i++) {
+            int offset = ((start + i) & mask) * SLOT_SIZE;
+            if (buffer.getInt(offset + 12) != EMPTY && buffer.getLong(offset) == hash && buffer.getInt(offset + 8) == check) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    // Returns true and sets value[0] if the key is cached
+    boolean get(String key, long[] value) {
+        int offset = find(hash(key), key.hashCode());
+        if (offset < 0) {
+            misses++;
+            return false;
+        }
+        hits++;
+        buffer.putInt(offset + 12, REFERENCED);
+        value[0] = buffer.getLong(offset + 16);
+        return true;
+    }
+
+    void put(String key, long value) {
+        long hash = hash(key);
+        int check = key.hashCode();
+        int offset = find(hash, check);
+        if (offset < 0) {
+            offset = evict(hash);
+            buffer.putLong(offset, hash);
+            buffer.putInt(offset + 8, check);
+        }
+        buffer.putInt(offset + 12, REFERENCED);
+        buffer.putLong(offset + 16, value);
+    }
+
+    // Returns a free slot of the window of the hash, or the one of the first
+    // entry not referenced since the clock last passed over it
+    private int evict(long hash) {
+        int start = (int) (hash ^ (hash >>> 32)) & mask;
+        for (int i = 0; i < WINDOW; i++) {
+            int offset = ((start + i) & mask) * SLOT_SIZE;
+            if (buffer.getInt(offset + 12) == EMPTY) {
+                return offset;
+            }
+        }
+        while (true) {
+            for (int i = 0; i < WINDOW; i++) {
+                int offset = ((start + i) & mask) * SLOT_SIZE;
+                if (buffer.getInt(offset + 12) == USED) {
+                    return offset;
+                }
+                buffer.putInt(offset + 12, USED);
+            }
+        }
+    }
+
+    void remove(String key) {
+        int offset = find(hash(key), key.hashCode());
+        if (offset >= 0) {
+            buffer.putInt(offset + 12, EMPTY);
+        }
+    }
+
+    void clear() {
+        for (int offset = 0; offset < buffer.capacity(); offset += SLOT_SIZE) {
+            buffer.putInt(offset + 12, EMPTY);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+}
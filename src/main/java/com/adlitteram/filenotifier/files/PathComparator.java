@@ -0,0 +1,60 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.util.Comparator;
+
+/**
+ * Orders path strings like a depth first walk: the separator sorts before any
+ * other character so a directory is immediately followed by its descendants.
+ */
+public class PathComparator implements Comparator<String> {
+
+    public static final PathComparator INSTANCE = new PathComparator();
+    public static final char SEPARATOR = File.separatorChar;
+
+    @Override
+    public int compare(String s1, String s2) {
+        int len = Math.min(s1.length(), s2.length());
+        for (int i = 0; i < len; i++) {
+            char c1 = s1.charAt(i);
+            char c2 = s2.charAt(i);
+            if (c1 != c2) {
+                if (c1 == SEPARATOR) {
+                    return -1;
+                }
+                if (c2 == SEPARATOR) {
+                    return 1;
+                }
+                return c1 - c2;
+            }
+        }
+        return s1.length() - s2.length();
+    }
+
+    // Returns true if path is strictly below parent
+    public static boolean isAncestor(String parent, String path) {
+        if (path.length() <= parent.length() || !path.startsWith(parent)) {
+            return false;
+        }
+        return parent.charAt(parent.length() - 1) == SEPARATOR || path.charAt(parent.length()) == SEPARATOR;
+    }
+
+    public static String getName(String path) {
+        return path.substring(path.lastIndexOf(SEPARATOR) + 1);
+    }
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * The filter rules of a localSpool.
+ * <p>
+ * The include and exclude patterns match the names of the entries (includes
+ * are not applied to directories). The directory exclude pattern matches the
+ * name or the relative path (with '/' separators) of a directory, whose whole
+ * subtree is then skipped. The max depth limits the number of names of the
+ * relative paths, 0 means no limit.
+ */
+public class PathFilter {
+
+    private final Pattern includePattern;
+    private final Pattern excludePattern;
+    private final Pattern excludeDirPattern;
+    private final int maxDepth;
+
+    public PathFilter(Pattern includePattern, Pattern excludePattern) {
+        this(includePattern, excludePattern, null, 0);
+    }
+
+    public PathFilter(Pattern includePattern, Pattern excludePattern, Pattern excludeDirPattern, int maxDepth) {
+        this.includePattern = includePattern;
+        this.excludePattern = excludePattern;
+        this.excludeDirPattern = excludeDirPattern;
+        this.maxDepth = Math.max(0, maxDepth);
+    }
+
+    public Pattern getIncludePattern() {
+        return includePattern;
+    }
+
+    public Pattern getExcludePattern() {
+        return excludePattern;
+    }
+
+    public Pattern getExcludeDirPattern() {
+        return excludeDirPattern;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public boolean accept(String name, boolean isDirectory) {
+        if (includePattern != null && !includePattern.matcher(name).matches() && !isDirectory) {
+            return false;
+        }
+        return excludePattern == null || !excludePattern.matcher(name).matches();
+    }
+
+    public boolean acceptDirectory(String name, String relativePath) {
+        if (excludeDirPattern == null) {
+            return true;
+        }
+        return !excludeDirPattern.matcher(name).matches()
+               && !excludeDirPattern.matcher(normalize(relativePath)).matches();
+    }
+
+    public boolean acceptDepth(int depth) {
+        return maxDepth == 0 || depth <= maxDepth;
+    }
+
+    // Checks the depth and the directories of a path which has not been walked
+    public boolean acceptRelative(String relativePath, boolean isDirectory) {
+        if (relativePath.isEmpty()) {
+            return true;
+        }
+
+        String path = normalize(relativePath);
+        int depth = 1;
+        int index = path.indexOf('/');
+        while (index >= 0) {
+            if (!acceptDirectory(path.substring(path.lastIndexOf('/', index - 1) + 1, index), path.substring(0, index))) {
+                return false;
+            }
+            depth++;
+            index = path.indexOf('/', index + 1);
+        }
+
+        if (!acceptDepth(depth)) {
+            return false;
+        }
+        return !isDirectory || acceptDirectory(path.substring(path.lastIndexOf('/') + 1), path);
+    }
+
+    public boolean hasDirectoryRules() {
+        return excludeDirPattern != null || maxDepth > 0;
+    }
+
+    private static String normalize(String path) {
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,227 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.mapdb.Fun;
+
+/**
+ * A path keyed map stored with compact keys.
+ * <p>
+ * A key is split into its parent directory (with the trailing separator) and
+ * its name. The parent is interned in a directory table shared by the maps of
+ * a database and the entry is stored under (directory id, name), so a
+ * directory path is stored once instead of once per file. The ids of the
+ * recently used directories are cached.
+ */
+public class PathKeyMap<V> extends AbstractMap<String, V> {
+
+    private final Map<Fun.Tuple2<Long, String>, V> map;
+    private final Directories directories;
+
+    public PathKeyMap(Map<Fun.Tuple2<Long, String>, V> map, Directories directories) {
+        this.map = map;
+        this.directories = directories;
+    }
+
+    private Fun.Tuple2<Long, String> encode(Object key, boolean create) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String path = (String) key;
+        int index = path.lastIndexOf(PathComparator.SEPARATOR) + 1;
+        Long id = directories.getId(path.substring(0, index), create);
+        return id == null ? null : Fun.t2(id, path.substring(index));
+    }
+
+    private String decode(Fun.Tuple2<Long, String> key) {
+        return directories.getPath(key.a) + key.b;
+    }
+
+    @Override
+    public V get(Object key) {
+        Fun.Tuple2<Long, String> k = encode(key, false);
+        return k == null ? null : map.get(k);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Fun.Tuple2<Long, String> k = encode(key, false);
+        return k != null && map.containsKey(k);
+    }
+
+    @Override
+    public V put(String key, V value) {
+        return map.put(encode(key, true), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        Fun.Tuple2<Long, String> k = encode(key, false);
+        return k == null ? null : map.remove(k);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    // Adds the directory ids used by the keys without decoding them
+    public void collectDirectoryIds(Set<Long> ids) {
+        for (Fun.Tuple2<Long, String> key : map.keySet()) {
+            ids.add(key.a);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                Iterator<Map.Entry<Fun.Tuple2<Long, String>, V>> iterator = map.entrySet().iterator();
+                return new Iterator<Map.Entry<String, V>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, V> next() {
+                        Map.Entry<Fun.Tuple2<Long, String>, V> entry = iterator.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(decode(entry.getKey()), entry.getValue());
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+
+    /**
+     * The directory table: parent path -> id and id -> parent path. The empty
+     * parent of the keys without separator has the id 0.
+     */
+    public static class Directories {
+
+        private static final int CACHE_SIZE = 4096;
+
+        private final Map<String, Long> ids;
+        private final Map<Long, String> paths;
+        private long lastId;
+        private final Map<String, Long> idCache = createCache();
+        private final Map<Long, String> pathCache = createCache();
+
+        public Directories(Map<String, Long> ids, Map<Long, String> paths) {
+            this.ids = ids;
+            this.paths = paths;
+            for (Long id : paths.keySet()) {
+                lastId = Math.max(lastId, id);
+            }
+        }
+
+        public synchronized Long getId(String path, boolean create) {
+            if (path.isEmpty()) {
+                return 0L;
+            }
+
+            Long id = idCache.get(path);
+            if (id == null) {
+                id = ids.get(path);
+                if (id == null) {
+                    if (!create) {
+                        return null;
+                    }
+                    id = ++lastId;
+                    ids.put(path, id);
+                    paths.put(id, path);
+                }
+                idCache.put(path, id);
+            }
+            return id;
+        }
+
+        public synchronized String getPath(long id) {
+            if (id == 0) {
+                return "";
+            }
+
+            String path = pathCache.get(id);
+            if (path == null) {
+                path = paths.get(id);
+                if (path == null) {
+                    throw new IllegalStateException("Unknown directory id: " + id);
+                }
+                pathCache.put(id, path);
+            }
+            return path;
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+        // Removes the directories no more used by any key
+        public synchronized int retain(Set<Long> usedIds) {
+            int count = 0;
+            Iterator<Map.Entry<Long, String>> iterator = paths.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, String> entry = iterator.next();
+                if (!usedIds.contains(entry.getKey())) {
+                    ids.remove(entry.getValue());
+                    iterator.remove();
+                    count++;
+                }
+            }
+            idCache.clear();
+            pathCache.clear();
+            return count;
+        }
+
+        private static <K, V> Map<K, V> createCache() {
+            return new LinkedHashMap<K, V>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListenerPool;
+import com.adlitteram.filenotifier.Channel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reports the entries moved while the spooler was stopped as renames.
+ * <p>
+ * The new entries of a walk are held back with their fingerprint instead of
+ * being reported as created. Once the walk is complete, a stale entry whose
+ * file key, size and modified time match a new one below the same root is
+ * reported as renamed to it and is not deleted. The other new entries are then
+ * reported as created.
+ * <p>
+ * The size and the time must match as a file system may reuse the file key of
+ * a deleted file, and the file key stored is only a hash of the one of the
+ * file system. The new entries held take at most maxMemory bytes, estimated
+ * from their path length: once it is reached, the next ones are reported as
+ * created right away and cannot be matched to a rename.
+ */
+public class RenameDetector {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(RenameDetector.class);
+
+    // The estimated size of a held entry without its path: the entry, its
+    // list slot and its map node
+    private static final int ENTRY_SIZE = 128;
+
+    private final Channel channel;
+    private final ChangeListenerPool<Object> fileListeners;
+    private final RootFinder rootFinder;
+    private final PathFilter filter;
+    private final ArrayList<Created> createdList = new ArrayList<>();
+    private final HashMap<Long, Created> createdMap = new HashMap<>();
+    private final long maxMemory;
+    private long memory;
+    private boolean full;
+    private int renameCount;
+
+    public RenameDetector(Channel channel, ChangeListenerPool<Object> fileListeners, Collection<Path> rootPaths, PathFilter filter, long maxMemory) {
+        this.channel = channel;
+        this.maxMemory = maxMemory;
+        this.fileListeners = fileListeners;
+        this.rootFinder = new RootFinder(rootPaths);
+        this.filter = filter;
+    }
+
+    // Called by the walkers for a new entry, returns false if it is not held
+    public synchronized boolean add(String root, String path, long time, long size, long fileKey, boolean isDirectory, boolean retained) {
+        if (fileKey == 0) {
+            return false;
+        }
+        long entrySize = ENTRY_SIZE + 2L * path.length();
+        if (memory + entrySize > maxMemory) {
+            if (!full) {
+                full = true;
+                LOGGER.warn(channel.getId() + " - Rename detection memory full, " + createdList.size() + " new entries held, the next ones are reported as created");
+            }
+            return false;
+        }
+        memory += entrySize;
+        Created created = new Created(root, path, time, size, isDirectory, retained);
+        // Hard links share the file key
+        created.next = createdMap.put(fileKey, created);
+        createdList.add(created);
+        return true;
+    }
+
+    // Reports a stale entry as renamed if it matches a held new entry, returns
+    // false if it has been deleted
+    public boolean match(String key, Object value) {
+        Created created = GenerationMap.hasFingerprint(value) ? take(key, value) : null;
+        if (created == null) {
+            return false;
+        }
+        fileListeners.firechange(new FileEvent(channel, created.root, KeyCodec.relativize(created.root, key), created.path, FileEvent.Type.RENAME));
+        renameCount++;
+        return true;
+    }
+
+    // Called once all the stale entries are matched, reports the held creations
+    public void complete() {
+        if (renameCount > 0) {
+            LOGGER.info(channel.getId() + " - " + renameCount + " renamed entries");
+            renameCount = 0;
+        }
+        flush();
+    }
+
+    private Created take(String key, Object value) {
+        String root = rootFinder.find(key);
+        if (root == null) {
+            return null;
+        }
+
+        long time = GenerationMap.getTime(value);
+        long size = GenerationMap.getSize(value);
+        Long fileKey = GenerationMap.getFileKey(value);
+        Created previous = null;
+        for (Created created = createdMap.get(fileKey); created != null; created = created.next) {
+            if (created.time == time && created.size == size && created.root.equals(root) && accept(key, root, created.isDirectory)) {
+                if (previous == null) {
+                    if (created.next == null) {
+                        createdMap.remove(fileKey);
+                    }
+                    else {
+                        createdMap.put(fileKey, created.next);
+                    }
+                }
+                else {
+                    previous.next = created.next;
+                }
+                created.renamed = true;
+                return created;
+            }
+            previous = created;
+        }
+        return null;
+    }
+
+    // The keys below an excluded directory have not been walked
+    private boolean accept(String key, String root, boolean isDirectory) {
+        return !filter.hasDirectoryRules() || filter.acceptRelative(KeyCodec.relativize(root, key), isDirectory);
+    }
+
+    // Reports the held entries as created, also called when the walk is interrupted
+    public void flush() {
+        for (Created created : createdList) {
+            if (!created.renamed && created.retained) {
+                fileListeners.firechange(new FileEvent(channel, created.root, created.path, FileEvent.Type.CREATE));
+            }
+        }
+        createdList.clear();
+        createdMap.clear();
+        memory = 0;
+        full = false;
+    }
+
+    private static class Created {
+
+        private final String root;
+        private final String path;
+        private final long time;
+        private final long size;
+        private final boolean isDirectory;
+        // False if the entry is older than the retain time
+        private final boolean retained;
+        private boolean renamed;
+        private Created next;
+
+        Created(String root, String path, long time, long size, boolean isDirectory, boolean retained) {
+            this.root = root;
+            this.path = path;
+            this.time = time;
+            this.size = size;
+            this.isDirectory = isDirectory;
+            this.retained = retained;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Finds the spooled root of the keys of the state database.
+ */
+class RootFinder {
+
+    private final String[] roots;
+    private String root;
+
+    RootFinder(Collection<Path> rootPaths) {
+        ArrayList<String> list = new ArrayList<>();
+        for (Path rootPath : rootPaths) {
+            list.add(rootPath.toString());
+        }
+        list.sort(PathComparator.INSTANCE);
+        this.roots = list.toArray(new String[list.size()]);
+    }
+
+    // Keys are usually sorted so the root of the previous key nearly always matches
+    String find(String key) {
+        if (root != null && (root.equals(key) || PathComparator.isAncestor(root, key))) {
+            return root;
+        }
+        for (String r : roots) {
+            if (r.equals(key) || PathComparator.isAncestor(r, key)) {
+                root = r;
+                return r;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,152 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListenerPool;
+import com.adlitteram.filenotifier.Channel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Diffs a walk against the last spool with sorted streams instead of random
+ * lookups in the old map.
+ * <p>
+ * The walker writes the visited entries to the walk sorter. The file map is
+ * then read once and sorted the same way, with the generation tag of each
+ * entry, and both streams are merged: the new and modified entries are written
+ * with the current generation in path order and the stale keys only found in
+ * the file map are handed to the DeleteScanner, which removes them. The
+ * unchanged entries, the only ones left on the old generation, are then moved
+ * to the current one by a single pass over the map in the order of the store.
+ * The memory used does not depend on the number of entries.
+ */
+public class SortedSpool {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SortedSpool.class);
+
+    private final Channel channel;
+    private final ChangeListenerPool<Object> fileListeners;
+    private final Collection<Path> rootPaths;
+    private final PathFilter filter;
+    private final long retainTime;
+    private final Path tempDir;
+    private final ExternalSorter walkSorter;
+    private DeleteScanner scanner;
+    private volatile boolean interrupted = false;
+
+    public SortedSpool(Channel channel, ChangeListenerPool<Object> fileListeners, Collection<Path> rootPaths, PathFilter filter, long retainTime, Path tempDir) {
+        this.channel = channel;
+        this.fileListeners = fileListeners;
+        this.rootPaths = rootPaths;
+        this.filter = filter;
+        this.retainTime = retainTime;
+        this.tempDir = tempDir;
+        this.walkSorter = new ExternalSorter(tempDir);
+    }
+
+    // Receives the entries visited by the walkers
+    public ExternalSorter getWalkSorter() {
+        return walkSorter;
+    }
+
+    public void merge(GenerationMap fileMap, Map<String, long[]> dirMap) throws IOException {
+        try (ExternalSorter oldSorter = new ExternalSorter(tempDir);
+             ExternalSorter deleteSorter = new ExternalSorter(tempDir)) {
+
+            for (Map.Entry<String, Object> entry : fileMap.getMap().entrySet()) {
+                String key = entry.getKey();
+                if (!".".equals(key)) {
+                    oldSorter.add(key, GenerationMap.getTagged(entry.getValue()));
+                }
+                if (interrupted) {
+                    return;
+                }
+            }
+            log("Sorted spool: " + walkSorter.size() + " walked entries in " + walkSorter.getRunCount() + " runs - "
+                + oldSorter.size() + " old entries in " + oldSorter.getRunCount() + " runs");
+
+            RootFinder rootFinder = new RootFinder(rootPaths);
+            try (ExternalSorter.Cursor walked = walkSorter.cursor();
+                 ExternalSorter.Cursor old = oldSorter.cursor()) {
+
+                boolean hasWalked = walked.next();
+                boolean hasOld = old.next();
+                while ((hasWalked || hasOld) && !interrupted) {
+                    int cmp = !hasOld ? -1 : !hasWalked ? 1 : PathComparator.INSTANCE.compare(walked.getKey(), old.getKey());
+                    if (cmp > 0) {
+                        // Not the entries written by the watcher during the walk
+                        if (!fileMap.isCurrent(old.getValue())) {
+                            deleteSorter.add(old.getKey(), 0);
+                        }
+                        hasOld = old.next();
+                        continue;
+                    }
+
+                    String key = walked.getKey();
+                    long filetime = walked.getValue();
+                    // The unchanged entries are moved to the current generation after the scan
+                    boolean changed = cmp < 0 || GenerationMap.getTime(old.getValue()) != filetime;
+                    if (changed) {
+                        fileMap.put(key, filetime);
+                    }
+                    if (changed && filetime > retainTime) {
+                        String root = rootFinder.find(key);
+                        if (root != null) {
+                            fileListeners.firechange(new FileEvent(channel, root, KeyCodec.relativize(root, key),
+                                                                   cmp < 0 ? FileEvent.Type.CREATE : FileEvent.Type.MODIFY));
+                        }
+                    }
+                    hasWalked = walked.next();
+                    if (cmp == 0) {
+                        hasOld = old.next();
+                    }
+                }
+            }
+
+            if (!interrupted) {
+                scanner = new DeleteScanner(channel, fileListeners, rootPaths, filter);
+                scanner.setDirMap(dirMap);
+                scanner.setFileMap(fileMap);
+                try (ExternalSorter.Cursor deleted = deleteSorter.cursor()) {
+                    scanner.scan(deleted);
+                }
+            }
+            if (!interrupted) {
+                log("Sorted spool: " + fileMap.touchAll() + " unchanged entries moved to the current generation");
+            }
+        }
+    }
+
+    // Deletes the temporary files of the walk
+    public void close() {
+        walkSorter.close();
+    }
+
+    public void interrupt() {
+        interrupted = true;
+        if (scanner != null) {
+            scanner.interrupt();
+        }
+    }
+
+    private void log(String message) {
+        LOGGER.info(channel.getId() + " - " + message);
+    }
+}
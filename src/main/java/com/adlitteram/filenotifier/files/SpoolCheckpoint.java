@@ -0,0 +1,130 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the progress of a spool in the state database so that an interrupted
+ * spool is resumed at the next start instead of walking the whole tree again.
+ * <p>
+ * A directory is marked done once its whole subtree has been visited and the
+ * resumed walk skips it. The generation is kept when a spool resumes, so the
+ * entries not visited yet are still on the old one and the deleted entries are
+ * still detected. If an interrupted spool is started again from scratch
+ * instead, all the entries are first moved to its generation, so the ones it
+ * left on the old generation do not alias the new one.
+ */
+public class SpoolCheckpoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolCheckpoint.class);
+
+    private static final long COMMIT_DELAY = 10000;
+    private static final String COMPLETE_KEY = "complete";
+    private static final String OLD_GEN_KEY = "oldGen";
+    private static final String CUR_GEN_KEY = "curGen";
+    private static final String LAST_DIR_KEY = "lastDir";
+
+    private final DbManager dbManager;
+    private final Map<String, Object> spoolMap;
+    private final Map<String, Long> doneMap;
+    private boolean resumed;
+    private long generation;
+    private long commitTime;
+
+    SpoolCheckpoint(DbManager dbManager, Map<String, Object> spoolMap, Map<String, Long> doneMap) {
+        this.dbManager = dbManager;
+        this.spoolMap = spoolMap;
+        this.doneMap = doneMap;
+    }
+
+    // True if the last spool has been started but not completed
+    boolean isInterrupted() {
+        return Boolean.FALSE.equals(spoolMap.get(COMPLETE_KEY));
+    }
+
+    // A new generation starts: the entries of the last spool become the old ones
+    private void reset() {
+        long gen = getCurGeneration();
+        if (isInterrupted()) {
+            int count = dbManager.getFileMap().touchAll();
+            LOGGER.info("Interrupted spool discarded, " + count + " entries moved to generation " + gen);
+        }
+        spoolMap.put(OLD_GEN_KEY, gen);
+        spoolMap.put(CUR_GEN_KEY, gen + 1);
+        spoolMap.remove(LAST_DIR_KEY);
+        doneMap.clear();
+        generation = gen + 1;
+        dbManager.getFileMap().setGeneration(generation);
+    }
+
+    void resume() {
+        resumed = true;
+        generation = getCurGeneration();
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public long getOldGeneration() {
+        Object gen = spoolMap.get(OLD_GEN_KEY);
+        return gen == null ? 0 : (Long) gen;
+    }
+
+    public long getCurGeneration() {
+        Object gen = spoolMap.get(CUR_GEN_KEY);
+        return gen == null ? 0 : (Long) gen;
+    }
+
+    public String getLastDir() {
+        return (String) spoolMap.get(LAST_DIR_KEY);
+    }
+
+    public void start() {
+        if (!resumed) {
+            reset();
+        }
+        spoolMap.put(COMPLETE_KEY, Boolean.FALSE);
+        dbManager.commit();
+        commitTime = System.currentTimeMillis();
+    }
+
+    public boolean isDone(String dir) {
+        return doneMap.containsKey(dir);
+    }
+
+    // Called when the subtree of dir has been fully visited
+    public synchronized void done(String dir) {
+        doneMap.put(dir, generation);
+        spoolMap.put(LAST_DIR_KEY, dir);
+
+        long time = System.currentTimeMillis();
+        if (time - commitTime > COMMIT_DELAY) {
+            dbManager.commit();
+            commitTime = time;
+        }
+    }
+
+    public void complete() {
+        doneMap.clear();
+        spoolMap.remove(LAST_DIR_KEY);
+        spoolMap.put(COMPLETE_KEY, Boolean.TRUE);
+        resumed = false;
+    }
+}
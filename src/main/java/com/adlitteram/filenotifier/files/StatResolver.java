@@ -0,0 +1,127 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the attributes of the paths of a batch of watcher events with a pool
+ * of threads, so the latency of a remote file system is paid once per batch
+ * rather than once per event.
+ * <p>
+ * Each distinct key of a batch is read once: the watcher still processes the
+ * events in order, and the events of a path all see the same attributes.
+ * <p>
+ * A path which cannot be read by the pool, for any reason, is left out of the
+ * result: the watcher then reads it inline.
+ */
+public class StatResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatResolver.class);
+
+    private final String id;
+    private final ForkJoinPool pool;
+    private final int threads;
+
+    public StatResolver(String id, int threads) {
+        this.id = id;
+        this.threads = threads;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    // Returns key -> attributes, null for the paths which are gone, without
+    // the paths left unresolved
+    public Map<String, BasicFileAttributes> resolve(Collection<String> keys) throws InterruptedException {
+        HashMap<String, BasicFileAttributes> attributes = new HashMap<>();
+        if (keys.size() < 2) {
+            for (String key : keys) {
+                resolve(attributes, key);
+            }
+            return attributes;
+        }
+
+        ArrayList<String> list = new ArrayList<>(keys);
+        int count = Math.min(threads, list.size());
+        ArrayList<Callable<Map<String, BasicFileAttributes>>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<String> slice = list.subList(i * list.size() / count, (i + 1) * list.size() / count);
+            tasks.add(() -> {
+                HashMap<String, BasicFileAttributes> map = new HashMap<>();
+                for (String key : slice) {
+                    resolve(map, key);
+                }
+                return map;
+            });
+        }
+        for (Future<Map<String, BasicFileAttributes>> future : pool.invokeAll(tasks)) {
+            try {
+                attributes.putAll(future.get());
+            }
+            catch (ExecutionException ex) {
+                // The paths of the slice are read inline
+                LOGGER.warn(id + " - StatResolver.resolve(): ", ex.getCause());
+            }
+        }
+        return attributes;
+    }
+
+    private void resolve(Map<String, BasicFileAttributes> attributes, String key) {
+        try {
+            attributes.put(key, readAttributes(id, Paths.get(key)));
+        }
+        catch (RuntimeException ex) {
+            LOGGER.warn(id + " - " + key + " unresolved", ex);
+        }
+    }
+
+    // A single stat, null if the path is gone
+    public static BasicFileAttributes readAttributes(String id, Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException ex) {
+            return null;
+        }
+        catch (IOException ex) {
+            LOGGER.warn(id + " - " + path, ex);
+            return null;
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+}
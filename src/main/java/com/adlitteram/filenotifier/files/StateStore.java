@@ -0,0 +1,45 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.Map;
+
+/**
+ * The storage backend of a state database: a set of named maps whose changes
+ * are made durable by commit().
+ * <p>
+ * The maps are thread safe. Their keys and values are strings, numbers,
+ * booleans, long arrays or tuples of them.
+ */
+public interface StateStore {
+
+    // Creates the map if it does not exist
+    <K, V> Map<K, V> getMap(String name);
+
+    boolean exists(String name);
+
+    void delete(String name);
+
+    void commit();
+
+    // Reclaims the space of the old records, may run in the background
+    void compact();
+
+    // The part of the storage held by old records, from 0 to 1
+    double getFragmentation();
+
+    void close();
+}
@@ -0,0 +1,161 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+/**
+ * A sorted index of the keys of a file map.
+ * <p>
+ * It lists the entries below a directory without reading the whole map, so
+ * the watcher can remove or move them when only the directory is reported.
+ * The keys below a directory are a range of the sorted keys: the ones
+ * starting with the directory and a separator, the parents first. They are
+ * held in a MapDB B-tree out of the Java heap, dropped on close, and the range
+ * is read lazily. It is not thread safe.
+ * <p>
+ * An entry takes about twice the length of its key. The index is limited to
+ * half of the max direct memory of the JVM: add() returns false once the limit
+ * is reached or the memory cannot be allocated, the index is then closed.
+ */
+public class SubtreeIndex {
+
+    private static final char SEPARATOR = PathComparator.SEPARATOR;
+
+    private final long maxBytes;
+    private final DB db;
+    private final NavigableSet<String> keys;
+    // The size of a B-tree is counted by iterating it
+    private int size;
+    private long bytes;
+    private boolean closed;
+
+    public SubtreeIndex() {
+        this(OffHeapCache.getMaxDirectMemory() / 2);
+    }
+
+    public SubtreeIndex(long maxBytes) {
+        this.maxBytes = Math.min(maxBytes, OffHeapCache.getMaxDirectMemory() / 2);
+        db = DBMaker.newMemoryDirectDB()
+                .transactionDisable()
+                .make();
+        keys = db.getTreeSet("keys");
+    }
+
+    // The estimated size of an entry in the B-tree
+    private static long getSize(String key) {
+        return 32 + 2L * key.length();
+    }
+
+    // Returns false if the index is full, it is then closed
+    public boolean add(String key) {
+        if (closed) {
+            return false;
+        }
+        long entrySize = getSize(key);
+        if (bytes + entrySize > maxBytes) {
+            close();
+            return false;
+        }
+        try {
+            if (keys.add(key)) {
+                size++;
+                bytes += entrySize;
+            }
+            return true;
+        }
+        catch (OutOfMemoryError ex) {
+            close();
+            return false;
+        }
+    }
+
+    public void remove(String key) {
+        if (!closed && keys.remove(key)) {
+            size--;
+            bytes -= getSize(key);
+        }
+    }
+
+    // The keys below a directory
+    private NavigableSet<String> range(String key) {
+        return keys.subSet(key + SEPARATOR, true, key + (char) (SEPARATOR + 1), false);
+    }
+
+    // Reads the descendants of a key lazily, parents first, they may be
+    // removed by the iterator
+    public Iterator<String> descendants(String key) {
+        Iterator<String> iterator = range(key).iterator();
+        return new Iterator<String>() {
+
+            private String last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                last = iterator.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                size--;
+                bytes -= getSize(last);
+            }
+        };
+    }
+
+    // Removes and returns the first descendants of a key, at most count of
+    // them, parents first
+    public ArrayList<String> removeDescendants(String key, int count) {
+        ArrayList<String> list = new ArrayList<>(Math.min(count, size));
+        Iterator<String> iterator = descendants(key);
+        while (list.size() < count && iterator.hasNext()) {
+            list.add(iterator.next());
+            iterator.remove();
+        }
+        return list;
+    }
+
+    public boolean hasChildren(String key) {
+        return !range(key).isEmpty();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The estimated size of the entries
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void close() {
+        if (!closed) {
+            closed = true;
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The source of the events of a FileWatcher.
+ * <p>
+ * The paths of the events are relative to the watched root. poll() and close()
+ * may be called by different threads, poll() then throws a
+ * java.nio.file.ClosedWatchServiceException.
+ */
+public interface WatchBackend {
+
+    public enum Kind {
+        CREATE, DELETE, MODIFY, RENAME_FROM, RENAME_TO, OVERFLOW
+    };
+
+    // Adds a watched root, it may only be registered by start()
+    void addRoot(Path root) throws IOException;
+
+    void removeRoot(Path root);
+
+    // Registers the roots, the directories rejected by the filter may be skipped
+    void start(PathFilter filter) throws IOException;
+
+    // Returns the events of a signalled directory, null after the timeout in
+    // ms, waits for them if the timeout is negative. It may be called by a
+    // dedicated thread, so it should only read the events.
+    List<Event> poll(long timeout) throws InterruptedException;
+
+    // Completes the events returned by poll() in the thread processing them,
+    // with the work a backend keeps off the reading thread such as stats and
+    // registrations. Returns the events to process.
+    default List<Event> process(List<Event> events) {
+        return events;
+    }
+
+    void close() throws IOException;
+
+    public static class Event {
+
+        private final Kind kind;
+        private final String root;
+        private final String path;
+
+        public Event(Kind kind, String root, String path) {
+            this.kind = kind;
+            this.root = root;
+            this.path = path;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getRoot() {
+            return root;
+        }
+
+        // Empty for the root
+        public String getPath() {
+            return path;
+        }
+    }
+}
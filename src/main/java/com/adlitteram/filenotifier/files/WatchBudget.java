@@ -0,0 +1,122 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the directory watches of the JdkWatchBackend of all the channels.
+ * <p>
+ * On Linux each watched directory uses an inotify watch, and the watches of a
+ * user are limited by fs.inotify.max_user_watches. The budget is this limit by
+ * default, or the maxwatches of the watchBudget element of channels.xml. Once
+ * it is used, or once the kernel refuses a watch, the next directories are
+ * polled every pollinterval seconds.
+ */
+public class WatchBudget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WatchBudget.class);
+    private static final Path INOTIFY_PATH = Paths.get("/proc/sys/fs/inotify");
+    private static final WatchBudget INSTANCE = new WatchBudget();
+
+    private final long maxUserWatches = readLimit("max_user_watches");
+    private final long maxUserInstances = readLimit("max_user_instances");
+    private final long maxQueuedEvents = readLimit("max_queued_events");
+    private final AtomicLong usedWatches = new AtomicLong();
+    private final AtomicLong polledCount = new AtomicLong();
+    private volatile long maxWatches = maxUserWatches > 0 ? maxUserWatches : Long.MAX_VALUE;
+    private volatile long pollInterval = 10000;
+
+    public static WatchBudget getInstance() {
+        return INSTANCE;
+    }
+
+    // Must be called before the channels are started
+    public void configure(int maxWatches, int pollInterval) {
+        if (maxWatches > 0) {
+            this.maxWatches = maxUserWatches > 0 ? Math.min(maxWatches, maxUserWatches) : maxWatches;
+        }
+        if (pollInterval > 0) {
+            this.pollInterval = pollInterval * 1000L;
+        }
+        LOGGER.info(getStatus());
+    }
+
+    // -1 if unknown, not on Linux. The size of a /proc file is 0, so it is
+    // read as a stream
+    private static long readLimit(String name) {
+        try (BufferedReader reader = Files.newBufferedReader(INOTIFY_PATH.resolve(name))) {
+            return Long.parseLong(reader.readLine().trim());
+        }
+        catch (IOException | NumberFormatException | NullPointerException ex) {
+            return -1;
+        }
+    }
+
+    public boolean isLimited() {
+        return maxWatches != Long.MAX_VALUE;
+    }
+
+    // Returns false if the budget is used
+    public boolean acquire() {
+        long used;
+        do {
+            used = usedWatches.get();
+            if (used >= maxWatches) {
+                return false;
+            }
+        }
+        while (!usedWatches.compareAndSet(used, used + 1));
+        return true;
+    }
+
+    public void release() {
+        usedWatches.decrementAndGet();
+    }
+
+    // Called with an acquired watch when the kernel refuses it: the watches
+    // of the other processes of the user count in its limit
+    public void exhausted() {
+        long used = usedWatches.decrementAndGet();
+        if (used < maxWatches) {
+            maxWatches = used;
+            LOGGER.warn("The watch limit is reached: " + getStatus());
+        }
+    }
+
+    public void polled(int delta) {
+        polledCount.addAndGet(delta);
+    }
+
+    // In ms
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public String getStatus() {
+        return "Watch budget: " + usedWatches.get() + " watches / " + (isLimited() ? maxWatches : "no limit")
+               + " - " + polledCount.get() + " polled directories every " + pollInterval / 1000 + " s"
+               + " - inotify max_user_watches: " + maxUserWatches + " - max_user_instances: " + maxUserInstances
+               + " - max_queued_events: " + maxQueuedEvents;
+    }
+}
@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.nio.file.ClosedWatchServiceException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the events of a watch backend on its own thread and hands them to the
+ * watcher through an EventRing.
+ * <p>
+ * The intake thread only polls the backend, so the stats, the commits and the
+ * listeners of the watcher do not delay the reading of the kernel queue: the
+ * work of the backend on the events, WatchBackend.process(), is left to the
+ * watcher. An empty list returned by the backend wakes up the watcher. If
+ * the watcher falls behind and the ring is full, the events are dropped: the
+ * directory of each dropped event is then reported as OVERFLOW and rescanned
+ * by the watcher.
+ */
+public class WatchIntake implements Runnable {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(WatchIntake.class);
+
+    // The max count of events returned by a poll
+    private static final int BATCH_SIZE = 1024;
+
+    private final String id;
+    private final WatchBackend backend;
+    private final EventRing<WatchBackend.Event> ring;
+    // The directories of the dropped events: key -> OVERFLOW event
+    private final ConcurrentHashMap<String, WatchBackend.Event> dropped = new ConcurrentHashMap<>();
+    private Thread thread;
+
+    public WatchIntake(String id, WatchBackend backend, int capacity) {
+        this.id = id;
+        this.backend = backend;
+        this.ring = new EventRing<>(capacity);
+    }
+
+    public void start() {
+        thread = new Thread(this, "WatchIntake-" + id);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Ends once the backend is closed
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                List<WatchBackend.Event> events = backend.poll(-1);
+                if (events == null) {
+                    continue;
+                }
+                if (events.isEmpty()) {
+                    ring.signal();
+                }
+                for (WatchBackend.Event event : events) {
+                    if (!ring.offer(event)) {
+                        drop(event);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            LOGGER.debug(id + " - Watch intake terminated: {}", ex.toString());
+        }
+        catch (RuntimeException ex) {
+            LOGGER.warn(id + " - Watch intake terminated", ex);
+        }
+        finally {
+            ring.close();
+        }
+    }
+
+    private void drop(WatchBackend.Event event) {
+        String path = event.getPath();
+        if (event.getKind() != WatchBackend.Kind.OVERFLOW) {
+            int index = path.lastIndexOf(File.separatorChar);
+            path = index < 0 ? "" : path.substring(0, index);
+        }
+        if (dropped.putIfAbsent(KeyCodec.toKey(event.getRoot(), path), new WatchBackend.Event(WatchBackend.Kind.OVERFLOW, event.getRoot(), path)) == null) {
+            ring.signal();
+        }
+    }
+
+    // Called by the watcher: returns the events read by the intake thread,
+    // null after the timeout in ms, waits for them if the timeout is negative
+    public List<WatchBackend.Event> poll(long timeout) throws InterruptedException {
+        if (!ring.await(timeout)) {
+            if (ring.isClosed()) {
+                throw new ClosedWatchServiceException();
+            }
+            return null;
+        }
+
+        ArrayList<WatchBackend.Event> events = new ArrayList<>(Math.min(ring.size(), BATCH_SIZE));
+        WatchBackend.Event event;
+        while (events.size() < BATCH_SIZE && (event = ring.poll()) != null) {
+            events.add(event);
+        }
+        if (!dropped.isEmpty()) {
+            int count = events.size();
+            Iterator<WatchBackend.Event> iterator = dropped.values().iterator();
+            while (iterator.hasNext()) {
+                events.add(iterator.next());
+                iterator.remove();
+            }
+            LOGGER.warn(id + " - Events dropped in " + (events.size() - count) + " directories, rescanned - " + getStatus());
+        }
+        return events;
+    }
+
+    // Wakes up the watcher waiting in poll()
+    public void wakeup() {
+        ring.signal();
+    }
+
+    public String getStatus() {
+        return "Watch intake: " + ring.size() + " / " + ring.capacity() + " events - high water: " + ring.getHighWater()
+               + " - " + ring.getDropCount() + " dropped";
+    }
+}
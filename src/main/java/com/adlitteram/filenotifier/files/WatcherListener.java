@@ -27,15 +27,26 @@ public class WatcherListener extends ScheduledList<FileEvent> implements ChangeL
     private final Logger LOGGER = LoggerFactory.getLogger(WatcherListener.class);
 
     private final FileEventProcessor fileEventProcessor;
+    private EventOutbox outbox;
+    private String consumerId;
 
     public WatcherListener(int delay, int maxsize, FileEventProcessor fileEventProcessor) {
         super(delay, maxsize);
         this.fileEventProcessor = fileEventProcessor;
     }
 
+    // The processed events are acknowledged in the outbox
+    public void setOutbox(EventOutbox outbox, String consumerId) {
+        this.outbox = outbox;
+        this.consumerId = consumerId;
+    }
+
     @Override
     public void execute(ArrayList<FileEvent> list) {
-        fileEventProcessor.process(list);
+        boolean processed = fileEventProcessor.process(list);
+        if (outbox != null) {
+            outbox.processed(consumerId, list, processed);
+        }
     }
 
     public void changed(RunEvent event) {
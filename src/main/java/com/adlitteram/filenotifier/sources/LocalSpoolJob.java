@@ -16,9 +16,14 @@
 package com.adlitteram.filenotifier.sources;
 
 import com.adlitteram.filenotifier.Channel;
+import com.adlitteram.filenotifier.files.DbConfig;
+import com.adlitteram.filenotifier.files.DbManager;
+import com.adlitteram.filenotifier.files.DirectoryListener;
+import com.adlitteram.filenotifier.files.EventOutbox;
 import com.adlitteram.filenotifier.files.FileSpooler;
 import com.adlitteram.filenotifier.files.FileWatcher;
 import com.adlitteram.filenotifier.files.SpoolerListener;
+import com.adlitteram.filenotifier.files.WatchBackend;
 import com.adlitteram.filenotifier.files.WatcherListener;
 import com.adlitteram.filenotifier.targets.FileEventProcessor;
 import java.io.IOException;
@@ -46,7 +51,7 @@ public class LocalSpoolJob implements InterruptableJob {
     private Channel channel;
     private FileWatcher watcher;
     private FileSpooler spooler;
-    private boolean interrupted;
+    private volatile boolean interrupted;
 
     /**
      * <p>
@@ -78,35 +83,98 @@ public class LocalSpoolJob implements InterruptableJob {
         channel = (Channel) dataMap.get("_channel");
         log("ENTRY");
 
-        String root = dataMap.getString("_root");
+        Options options = new Options();
+        options.root = dataMap.getString("_root");
         String includes = dataMap.getString("_includes");
         String excludes = dataMap.getString("_excludes");
-        boolean subdir = dataMap.getBoolean("_subdir");
+        String excludeDirs = dataMap.getString("_excludedirs");
+        options.maxDepth = getInt(dataMap, "_maxdepth", 0);
+        options.commitDelay = getInt(dataMap, "_commitdelay", 0);
+        options.commitCount = getInt(dataMap, "_commitcount", 1000);
+        options.intakeCapacity = getInt(dataMap, "_intakecapacity", 16384);
+        options.statThreads = getInt(dataMap, "_statthreads", 0);
+        options.subdir = dataMap.getBoolean("_subdir");
         boolean ext = dataMap.getBoolean("_ext");
-        int delay = dataMap.getInt("_delay");
-        int maxevent = dataMap.getInt("_maxevent");
-        double retain = dataMap.getDouble("_retain");
-        String db = dataMap.getString("_db");
+        String watchBackend = dataMap.getString("_watchbackend");
+        options.incremental = dataMap.getBoolean("_incremental");
+        options.lazyStat = dataMap.getBoolean("_lazystat");
+        options.sorted = dataMap.getBoolean("_sorted");
+        boolean compactKeys = dataMap.getBoolean("_compactkeys");
+        String store = dataMap.getString("_store");
+        double compactRatio = getDouble(dataMap, "_compactratio", 0.5);
+        boolean fingerprints = dataMap.getBoolean("_fingerprints");
+        int renameMemory = getInt(dataMap, "_renamememory", 64);
+        options.subtreeIndex = dataMap.getBoolean("_subtreeindex");
+        options.childEvents = dataMap.getBoolean("_childevents");
+        boolean outbox = dataMap.getBoolean("_outbox");
+        int cacheSize = getInt(dataMap, "_cachesize", 0);
+        boolean bloomFilter = dataMap.getBoolean("_bloomfilter");
+        options.delay = dataMap.getInt("_delay");
+        options.maxevent = dataMap.getInt("_maxevent");
+        options.retain = dataMap.getDouble("_retain");
+        options.parallelism = getInt(dataMap, "_parallelism", 1);
+        options.db = dataMap.getString("_db");
         FileEventProcessor[] feps = (FileEventProcessor[]) dataMap.get("_fileeventprocessors");
 
-        log("_db: " + db);
-        log("_root: " + root);
-        log("_subdir: " + subdir);
-        log("_delay: " + delay);
+        log("_db: " + options.db);
+        log("_root: " + options.root);
+        log("_subdir: " + options.subdir);
+        log("_delay: " + options.delay);
         log("_ext: " + ext);
-        log("_maxevent: " + maxevent);
+        log("_watchbackend: " + watchBackend);
+        log("_maxevent: " + options.maxevent);
         log("_includes: " + includes);
         log("_excludes: " + excludes);
-        log("_retain: " + retain);
+        log("_excludedirs: " + excludeDirs);
+        log("_maxdepth: " + options.maxDepth);
+        log("_commitdelay: " + options.commitDelay);
+        log("_commitcount: " + options.commitCount);
+        log("_intakecapacity: " + options.intakeCapacity);
+        log("_statthreads: " + options.statThreads);
+        log("_retain: " + options.retain);
+        log("_parallelism: " + options.parallelism);
+        log("_incremental: " + options.incremental);
+        log("_lazystat: " + options.lazyStat);
+        log("_sorted: " + options.sorted);
+        log("_compactkeys: " + compactKeys);
+        log("_store: " + store);
+        log("_compactratio: " + compactRatio);
+        log("_fingerprints: " + fingerprints);
+        log("_renamememory: " + renameMemory);
+        log("_subtreeindex: " + options.subtreeIndex);
+        log("_childevents: " + options.childEvents);
+        log("_outbox: " + outbox);
+        log("_cachesize: " + cacheSize);
+        log("_bloomfilter: " + bloomFilter);
 
-        Pattern includePattern = createRegexpPattern(includes);
-        Pattern excludePattern = createRegexpPattern(excludes);
+        options.includePattern = createRegexpPattern(includes);
+        options.excludePattern = createRegexpPattern(excludes);
+        options.excludeDirPattern = createRegexpPattern(excludeDirs);
+
+        DbConfig dbConfig = new DbConfig();
+        dbConfig.setCompactKeys(compactKeys);
+        dbConfig.setStore(store);
+        dbConfig.setCompactRatio(compactRatio);
+        dbConfig.setFingerprints(fingerprints);
+        dbConfig.setRenameMemory(renameMemory);
+        dbConfig.setOutbox(outbox);
+        dbConfig.setCacheSize(cacheSize);
+        dbConfig.setBloomFilter(bloomFilter);
+        options.dbConfig = dbConfig;
 
         if (feps != null) {
             try {
                 channel.active();
-                spooler = runSpooler(feps, db, root, subdir, includePattern, excludePattern, maxevent, retain);
-                watcher = runWatcher(feps, db, root, subdir, includePattern, excludePattern, maxevent, delay, ext);
+                // Created first, the backend may register the directories walked by the spool
+                WatchBackend backend = FileWatcher.createBackend(watchBackend, ext);
+                spooler = runSpooler(feps, options, backend instanceof DirectoryListener ? (DirectoryListener) backend : null);
+                // An interrupted spool is resumed at the next start
+                if (!interrupted) {
+                    watcher = runWatcher(feps, options, backend);
+                }
+                else {
+                    backend.close();
+                }
             }
             catch (IOException ex) {
                 LOGGER.warn("", ex);
@@ -120,6 +188,37 @@ public class LocalSpoolJob implements InterruptableJob {
         log("RETURN");
     }
 
+    private int getInt(JobDataMap dataMap, String key, int defaultValue) {
+        String str = dataMap.getString(key);
+        try {
+            if (str != null && str.length() > 0) {
+                return Integer.parseInt(str.trim());
+            }
+        }
+        catch (NumberFormatException nfe) {
+            LOGGER.warn("Number Error: " + key + " - ", nfe);
+        }
+        return defaultValue;
+    }
+
+    private double getDouble(JobDataMap dataMap, String key, double defaultValue) {
+        String str = dataMap.getString(key);
+        try {
+            if (str != null && str.length() > 0) {
+                return Double.parseDouble(str.trim());
+            }
+        }
+        catch (NumberFormatException nfe) {
+            LOGGER.warn("Number Error: " + key + " - ", nfe);
+        }
+        return defaultValue;
+    }
+
+    // The processors of a channel are identified by their position
+    private String getConsumerId(FileEventProcessor fep, int index) {
+        return index + "-" + fep.getClass().getSimpleName();
+    }
+
     private Pattern createRegexpPattern(String str) {
         Pattern pattern = null;
         try {
@@ -133,25 +232,40 @@ public class LocalSpoolJob implements InterruptableJob {
         return pattern;
     }
 
-    private FileSpooler runSpooler(FileEventProcessor[] feps, String db, String root, boolean subdir,
-                                   Pattern includePattern, Pattern excludePattern, int maxevent, double retain) throws IOException {
+    private FileSpooler runSpooler(FileEventProcessor[] feps, Options options, DirectoryListener directoryListener) throws IOException {
 
         log("Running spooler");
-        Path dbPath = Paths.get(db);
+        Path dbPath = Paths.get(options.db);
+        DbConfig dbConfig = options.dbConfig;
 
         long currentTime = System.currentTimeMillis();
-        long retainTime = currentTime - (long) (retain * 24d * 3600d * 1000d);
+        long retainTime = currentTime - (long) (options.retain * 24d * 3600d * 1000d);
         log("CurrentTime: " + new Date(currentTime));
         log("RetainTime: " + new Date(retainTime));
 
         spooler = new FileSpooler(channel, dbPath, retainTime);
-        spooler.addPath(Paths.get(root));
-        spooler.setIncludePattern(includePattern);
-        spooler.setExcludePattern(excludePattern);
+        spooler.addPath(Paths.get(options.root));
+        spooler.setDbConfig(dbConfig);
+        spooler.setIncludePattern(options.includePattern);
+        spooler.setExcludePattern(options.excludePattern);
+        spooler.setExcludeDirPattern(options.excludeDirPattern);
+        spooler.setMaxDepth(options.maxDepth);
+        spooler.setParallelism(options.parallelism);
+        spooler.setIncremental(options.incremental);
+        spooler.setLazyStat(options.lazyStat);
+        spooler.setSorted(options.sorted);
+        spooler.setDirectoryListener(directoryListener);
 
-        for (FileEventProcessor fep : feps) {
+        // The events not acknowledged before the last stop are sent first
+        EventOutbox outbox = dbConfig.isOutbox() ? DbManager.createManager(dbPath, dbConfig).getOutbox() : null;
+        for (int i = 0; i < feps.length; i++) {
+            FileEventProcessor fep = feps[i];
             log("Adding spoolerListener [" + fep.getClass().getSimpleName() + "]");
-            SpoolerListener spoolerListener = new SpoolerListener(maxevent, fep);
+            SpoolerListener spoolerListener = new SpoolerListener(options.maxevent, fep);
+            if (outbox != null) {
+                outbox.redeliver(getConsumerId(fep, i), channel, fep, options.maxevent);
+                spoolerListener.setOutbox(outbox, getConsumerId(fep, i));
+            }
             spooler.addSpoolerListener(spoolerListener); // call flush
             spooler.addFileListener(spoolerListener);
         }
@@ -159,20 +273,34 @@ public class LocalSpoolJob implements InterruptableJob {
         return spooler;
     }
 
-    private FileWatcher runWatcher(FileEventProcessor[] feps, String db, String root, boolean subdir,
-                                   Pattern includePattern, Pattern excludePattern, int maxevent, int delay, boolean ext) throws IOException {
+    private FileWatcher runWatcher(FileEventProcessor[] feps, Options options, WatchBackend backend) throws IOException {
 
         log("Running watcher");
-        Path dbPath = Paths.get(db);
+        Path dbPath = Paths.get(options.db);
+        DbConfig dbConfig = options.dbConfig;
 
-        watcher = new FileWatcher(channel, dbPath, ext);
-        watcher.addPath(Paths.get(root));
-        watcher.setIncludePattern(includePattern);
-        watcher.setExcludePattern(excludePattern);
+        watcher = new FileWatcher(channel, dbPath, backend);
+        watcher.addPath(Paths.get(options.root));
+        watcher.setDbConfig(dbConfig);
+        watcher.setCommitDelay(options.commitDelay);
+        watcher.setCommitCount(options.commitCount);
+        watcher.setIntakeCapacity(options.intakeCapacity);
+        watcher.setStatThreads(options.statThreads);
+        watcher.setSubtreeIndex(options.subtreeIndex);
+        watcher.setChildEvents(options.childEvents);
+        watcher.setIncludePattern(options.includePattern);
+        watcher.setExcludePattern(options.excludePattern);
+        watcher.setExcludeDirPattern(options.excludeDirPattern);
+        watcher.setMaxDepth(options.maxDepth);
 
-        for (FileEventProcessor fep : feps) {
+        EventOutbox outbox = dbConfig.isOutbox() ? DbManager.createManager(dbPath, dbConfig).getOutbox() : null;
+        for (int i = 0; i < feps.length; i++) {
+            FileEventProcessor fep = feps[i];
             log("Adding watcherListener[" + fep.getClass().getSimpleName() + "]");
-            WatcherListener watcherListener = new WatcherListener(delay, maxevent, fep);
+            WatcherListener watcherListener = new WatcherListener(options.delay, options.maxevent, fep);
+            if (outbox != null) {
+                watcherListener.setOutbox(outbox, getConsumerId(fep, i));
+            }
             watcher.addWatcherListener(watcherListener); // call flush
             watcher.addFileListener(watcherListener);
         }
@@ -196,4 +324,29 @@ public class LocalSpoolJob implements InterruptableJob {
         LOGGER.info(channel.getId() + " - " + message);
     }
 
+    // The options of the spooler and the watcher of a localSpool
+    private static class Options {
+
+        private String db;
+        private String root;
+        private boolean subdir;
+        private DbConfig dbConfig;
+        private Pattern includePattern;
+        private Pattern excludePattern;
+        private Pattern excludeDirPattern;
+        private int maxDepth;
+        private int maxevent;
+        private int delay;
+        private double retain;
+        private int parallelism;
+        private boolean incremental;
+        private boolean lazyStat;
+        private boolean sorted;
+        private int commitDelay;
+        private int commitCount;
+        private int intakeCapacity;
+        private int statThreads;
+        private boolean subtreeIndex;
+        private boolean childEvents;
+    }
 }
@@ -16,6 +16,8 @@
 package com.adlitteram.filenotifier.xml;
 
 import com.adlitteram.filenotifier.Channel;
+import com.adlitteram.filenotifier.files.IoBudget;
+import com.adlitteram.filenotifier.files.WatchBudget;
 import com.adlitteram.filenotifier.sources.LocalSpoolJob;
 import com.adlitteram.filenotifier.targets.FileEventProcessor;
 import com.adlitteram.filenotifier.targets.FileEventWriter;
@@ -52,7 +54,13 @@ public class ChannelsHandler extends DefaultHandler {
 
     @Override
     public void startElement(String uri, String local, String raw, Attributes attrs) {
-        if ("channel".equalsIgnoreCase(raw)) {
+        if ("ioBudget".equalsIgnoreCase(raw)) {
+            IoBudget.getInstance().configure(getInt(attrs, "statrate"), getInt(attrs, "walkers"));
+        }
+        else if ("watchBudget".equalsIgnoreCase(raw)) {
+            WatchBudget.getInstance().configure(getInt(attrs, "maxwatches"), getInt(attrs, "pollinterval"));
+        }
+        else if ("channel".equalsIgnoreCase(raw)) {
             channel = new Channel();
             channel.setScheduler(scheduler);
             channel.setId(attrs.getValue("id"));
@@ -73,11 +81,32 @@ public class ChannelsHandler extends DefaultHandler {
             jobMap.put("_root", attrs.getValue("root"));
             jobMap.put("_subdir", attrs.getValue("subdir"));
             jobMap.put("_ext", attrs.getValue("ext"));
+            jobMap.put("_watchbackend", attrs.getValue("watchbackend"));
             jobMap.put("_delay", attrs.getValue("delay"));
             jobMap.put("_maxevent", attrs.getValue("maxevent"));
             jobMap.put("_excludes", attrs.getValue("excludes"));
+            jobMap.put("_excludedirs", attrs.getValue("excludedirs"));
+            jobMap.put("_maxdepth", attrs.getValue("maxdepth"));
             jobMap.put("_includes", attrs.getValue("includes"));
             jobMap.put("_retain", attrs.getValue("retain"));
+            jobMap.put("_parallelism", attrs.getValue("parallelism"));
+            jobMap.put("_incremental", attrs.getValue("incremental"));
+            jobMap.put("_lazystat", attrs.getValue("lazystat"));
+            jobMap.put("_sorted", attrs.getValue("sorted"));
+            jobMap.put("_compactkeys", attrs.getValue("compactkeys"));
+            jobMap.put("_store", attrs.getValue("store"));
+            jobMap.put("_compactratio", attrs.getValue("compactratio"));
+            jobMap.put("_fingerprints", attrs.getValue("fingerprints"));
+            jobMap.put("_renamememory", attrs.getValue("renamememory"));
+            jobMap.put("_subtreeindex", attrs.getValue("subtreeindex"));
+            jobMap.put("_childevents", attrs.getValue("childevents"));
+            jobMap.put("_outbox", attrs.getValue("outbox"));
+            jobMap.put("_cachesize", attrs.getValue("cachesize"));
+            jobMap.put("_bloomfilter", attrs.getValue("bloomfilter"));
+            jobMap.put("_commitdelay", attrs.getValue("commitdelay"));
+            jobMap.put("_commitcount", attrs.getValue("commitcount"));
+            jobMap.put("_intakecapacity", attrs.getValue("intakecapacity"));
+            jobMap.put("_statthreads", attrs.getValue("statthreads"));
             channel.setJobDetail(job);
             processorList = new ArrayList<>();
         }
@@ -122,6 +151,17 @@ public class ChannelsHandler extends DefaultHandler {
         LOGGER.warn(getLocationString(ex), ex);
     }
 
+    private int getInt(Attributes attrs, String name) {
+        String value = attrs.getValue(name);
+        try {
+            return (value == null) ? 0 : Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            LOGGER.warn("Invalid " + name + ": " + value);
+            return 0;
+        }
+    }
+
     // Returns a string of the location.
     private String getLocationString(SAXParseException ex) {
         StringBuilder str = new StringBuilder();
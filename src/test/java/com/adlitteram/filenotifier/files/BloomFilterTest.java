@@ -0,0 +1,94 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BloomFilterTest {
+
+    private static final int COUNT = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String getKey(int i) {
+        return File.separator + "root" + File.separator + "d" + (i % 100) + File.separator + "f" + i;
+    }
+
+    @Test
+    public void hasNoFalseNegative() {
+        BloomFilter filter = new BloomFilter(COUNT);
+        // Added by parallel walkers
+        IntStream.range(0, COUNT).parallel().forEach(i -> filter.add(getKey(i)));
+        for (int i = 0; i < COUNT; i++) {
+            assertTrue(filter.mightContain(getKey(i)));
+        }
+
+        int falsePositives = 0;
+        for (int i = COUNT; i < 2 * COUNT; i++) {
+            if (filter.mightContain(getKey(i))) {
+                falsePositives++;
+            }
+        }
+        // About 1% at the expected count
+        assertTrue("False positives: " + falsePositives, falsePositives < COUNT / 50);
+    }
+
+    @Test
+    public void loadsTheSavedFilter() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("filter");
+        BloomFilter filter = BloomFilter.create(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add(getKey(i));
+        }
+        filter.save(file, 1000);
+
+        BloomFilter loaded = BloomFilter.load(file, 1000);
+        assertEquals(filter.getExpected(), loaded.getExpected());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(loaded.mightContain(getKey(i)));
+        }
+        // Saved for another state of the map
+        assertNull(BloomFilter.load(file, 999));
+        assertNull(BloomFilter.load(folder.getRoot().toPath().resolve("missing"), 1000));
+    }
+
+    @Test
+    public void filtersTheFileMapLookups() {
+        GenerationMap fileMap = new GenerationMap(new HashMap<>());
+        fileMap.put("a", 1000);
+        fileMap.rebuildFilter();
+        fileMap.put("b", 2000);
+
+        assertEquals(1000, GenerationMap.getTime(fileMap.get("a")));
+        assertEquals(2000, GenerationMap.getTime(fileMap.get("b")));
+        assertTrue(fileMap.getFilter().mightContain("b"));
+
+        // The keys written before a rebuild are still found
+        fileMap.rebuildFilter();
+        assertEquals(2000, GenerationMap.getTime(fileMap.get("b")));
+    }
+}
@@ -0,0 +1,124 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListenerPool;
+import com.adlitteram.filenotifier.Channel;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DeleteScannerTest {
+
+    private static final Path ROOT = Paths.get(File.separator + "root");
+
+    private final List<String> deleted = new ArrayList<>();
+
+    private DeleteScanner createScanner(PathFilter filter) {
+        Channel channel = new Channel();
+        channel.setId("test");
+        ChangeListenerPool<Object> listeners = new ChangeListenerPool<>();
+        listeners.addListener(event -> deleted.add(((FileEvent) event).getPath().replace(File.separatorChar, '/')));
+        return new DeleteScanner(channel, listeners, Collections.singletonList(ROOT), filter);
+    }
+
+    private static String toKey(String path) {
+        return KeyCodec.toKey(ROOT.toString(), path.replace('/', File.separatorChar));
+    }
+
+    private static List<String> toSortedKeys(String... paths) {
+        List<String> keys = new ArrayList<>();
+        for (String path : paths) {
+            keys.add(toKey(path));
+        }
+        Collections.sort(keys, PathComparator.INSTANCE);
+        return keys;
+    }
+
+    @Test
+    public void deletesInPathOrder() {
+        DeleteScanner scanner = createScanner(new PathFilter(null, null));
+        scanner.scan(toSortedKeys("b", "a-b", "a/y", "a", "a/x").iterator());
+
+        // The entries of a directory come before its siblings
+        assertEquals(Arrays.asList("a", "a/x", "a/y", "a-b", "b"), deleted);
+    }
+
+    @Test
+    public void appliesTheIncludesToTheFilesOnly() {
+        DeleteScanner scanner = createScanner(new PathFilter(Pattern.compile(".*\\.txt"), Pattern.compile("~.*")));
+        HashMap<String, long[]> dirMap = new HashMap<>();
+        dirMap.put(toKey("b"), new long[]{0, 0, 0});
+        scanner.setDirMap(dirMap);
+        scanner.scan(toSortedKeys("a", "a/x.txt", "a/~y.txt", "b", "c", "d.txt").iterator());
+
+        // a is known as a directory by its children, b by the dir map
+        assertEquals(Arrays.asList("a", "a/x.txt", "b", "d.txt"), deleted);
+    }
+
+    @Test
+    public void skipsExcludedDirectoryKnownByItsChildren() {
+        DeleteScanner scanner = createScanner(new PathFilter(null, null, Pattern.compile("a"), 0));
+        scanner.scan(toSortedKeys("a", "a/x", "a/y", "a-b", "b").iterator());
+
+        assertEquals(Arrays.asList("a-b", "b"), deleted);
+    }
+
+    @Test
+    public void skipsExcludedDirectoryKnownByTheDirMap() {
+        DeleteScanner scanner = createScanner(new PathFilter(null, null, Pattern.compile("a"), 0));
+        HashMap<String, long[]> dirMap = new HashMap<>();
+        dirMap.put(toKey("a"), new long[]{0, 0, 0, 0});
+        scanner.setDirMap(dirMap);
+        scanner.scan(toSortedKeys("a", "b").iterator());
+
+        assertEquals(Arrays.asList("b"), deleted);
+    }
+
+    @Test
+    public void removesTheStaleKeysOnce() {
+        GenerationMap fileMap = new GenerationMap(new HashMap<>());
+        List<String> keys = toSortedKeys("a", "b", "c");
+        for (String key : keys) {
+            fileMap.put(key, 1000);
+        }
+        fileMap.setGeneration(1);
+        // Written again by the watcher
+        fileMap.put(keys.get(1), 2000);
+
+        DeleteScanner scanner = createScanner(new PathFilter(null, null));
+        scanner.setFileMap(fileMap);
+        scanner.scan(keys.iterator());
+        assertEquals(Arrays.asList("a", "c"), deleted);
+        assertNull(fileMap.get(keys.get(0)));
+        assertTrue(fileMap.isCurrent(fileMap.get(keys.get(1))));
+
+        // A resumed scan does not send them again
+        deleted.clear();
+        scanner.scan(keys.iterator());
+        assertTrue(deleted.isEmpty());
+    }
+}
@@ -0,0 +1,144 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.Channel;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventOutboxTest {
+
+    private static final String CONSUMER = "consumer";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Channel channel;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        channel = new Channel();
+        channel.setId("test");
+        dir = folder.newFolder("outbox").toPath();
+    }
+
+    private EventOutbox append(String... paths) throws IOException {
+        EventOutbox outbox = new EventOutbox(dir);
+        outbox.register(CONSUMER);
+        for (String path : paths) {
+            outbox.append(new FileEvent(channel, "root", path, FileEvent.Type.CREATE));
+        }
+        outbox.sync();
+        return outbox;
+    }
+
+    // Returns the batches redelivered, the processor accepts the first ones
+    private List<List<String>> redeliver(EventOutbox outbox, int maxsize, int accepted) {
+        List<List<String>> batches = new ArrayList<>();
+        outbox.redeliver(CONSUMER, channel, list -> {
+            List<String> paths = new ArrayList<>();
+            for (FileEvent event : list) {
+                paths.add(event.getPath());
+            }
+            batches.add(paths);
+            return batches.size() <= accepted;
+        }, maxsize);
+        return batches;
+    }
+
+    @Test
+    public void redeliversTheUnacknowledgedEvents() throws IOException {
+        append("a", "b", "c").close();
+
+        EventOutbox outbox = new EventOutbox(dir);
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), redeliver(outbox, 2, 2));
+        outbox.close();
+
+        // Acknowledged once processed
+        outbox = new EventOutbox(dir);
+        assertTrue(redeliver(outbox, 2, 2).isEmpty());
+        outbox.close();
+    }
+
+    @Test
+    public void keepsTheRejectedEvents() throws IOException {
+        append("a", "b", "c").close();
+
+        EventOutbox outbox = new EventOutbox(dir);
+        // The first batch only is acknowledged, the redelivery stops on the second
+        assertEquals(2, redeliver(outbox, 1, 1).size());
+        outbox.close();
+
+        outbox = new EventOutbox(dir);
+        assertEquals(Arrays.asList(Arrays.asList("b", "c")), redeliver(outbox, 0, 1));
+        outbox.close();
+    }
+
+    @Test
+    public void keepsTheRenamePath() throws IOException {
+        EventOutbox outbox = new EventOutbox(dir);
+        outbox.register(CONSUMER);
+        outbox.append(new FileEvent(channel, "root", "b", "a", FileEvent.Type.RENAME));
+        outbox.append(new FileEvent(channel, "root", "c", FileEvent.Type.DELETE));
+        outbox.close();
+
+        List<FileEvent> events = new ArrayList<>();
+        outbox = new EventOutbox(dir);
+        outbox.redeliver(CONSUMER, channel, list -> events.addAll(list), 0);
+        outbox.close();
+
+        assertEquals(2, events.size());
+        assertEquals(1, events.get(0).getSeq());
+        assertEquals(FileEvent.Type.RENAME, events.get(0).getType());
+        assertEquals("a", events.get(0).getRpath());
+        assertEquals(FileEvent.Type.DELETE, events.get(1).getType());
+        assertNull(events.get(1).getRpath());
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException {
+        append("a", "b", "c").close();
+
+        Path segment = dir.resolve(String.format("%016x", 1) + ".seg");
+        try (FileChannel fc = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            fc.truncate(fc.size() - 2);
+        }
+
+        // The next event takes the seq of the torn one
+        EventOutbox outbox = append("d");
+        List<FileEvent> events = new ArrayList<>();
+        outbox.redeliver(CONSUMER, channel, list -> events.addAll(list), 0);
+        outbox.close();
+
+        assertEquals(3, events.size());
+        assertEquals("b", events.get(1).getPath());
+        assertEquals("d", events.get(2).getPath());
+        assertEquals(3, events.get(2).getSeq());
+    }
+}
@@ -0,0 +1,101 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class EventRingTest {
+
+    @Test
+    public void roundsTheCapacityToAPowerOfTwo() {
+        assertEquals(2, new EventRing<Integer>(0).capacity());
+        assertEquals(8, new EventRing<Integer>(5).capacity());
+        assertEquals(8, new EventRing<Integer>(8).capacity());
+    }
+
+    @Test
+    public void keepsTheOrderAcrossTheWraparound() {
+        EventRing<Integer> ring = new EventRing<>(4);
+        int offered = 0;
+        int polled = 0;
+        for (int i = 0; i < 1000; i++) {
+            // Fills the ring partly, the slots wrap around every few rounds
+            for (int j = 0; j <= i % 4; j++) {
+                assertTrue(ring.offer(offered++));
+            }
+            Integer element;
+            while ((element = ring.poll()) != null) {
+                assertEquals(polled++, (int) element);
+            }
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(offered, polled);
+        assertEquals(4, ring.getHighWater());
+        assertEquals(0, ring.getDropCount());
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        EventRing<Integer> ring = new EventRing<>(4);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, ring.offer(i));
+        }
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getDropCount());
+
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(6));
+        for (int i : new int[]{1, 2, 3, 6}) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void awaitsTheProducer() throws InterruptedException {
+        EventRing<Integer> ring = new EventRing<>(1024);
+        assertFalse(ring.await(10));
+        ring.signal();
+        assertTrue(ring.await(-1));
+
+        int count = 100000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!ring.offer(i)) {
+                    Thread.yield();
+                }
+            }
+            ring.close();
+        });
+        producer.start();
+
+        int expected = 0;
+        while (ring.await(-1)) {
+            Integer element;
+            while ((element = ring.poll()) != null) {
+                assertEquals(expected++, (int) element);
+            }
+        }
+        producer.join();
+        assertEquals(count, expected);
+        assertTrue(ring.isClosed());
+        assertTrue(ring.getHighWater() <= ring.capacity());
+    }
+}
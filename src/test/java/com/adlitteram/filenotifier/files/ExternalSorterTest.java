@@ -0,0 +1,94 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalSorterTest {
+
+    private static final char SEPARATOR = File.separatorChar;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> createKeys(int count) {
+        Random random = new Random(42);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // Names sorting before and after the separator
+            keys.add(SEPARATOR + "r" + SEPARATOR + "d" + random.nextInt(20) + (random.nextBoolean() ? "-x" : SEPARATOR + "f" + i));
+        }
+        return keys;
+    }
+
+    private static List<String> read(ExternalSorter sorter, List<Long> values) throws IOException {
+        List<String> keys = new ArrayList<>();
+        try (ExternalSorter.Cursor cursor = sorter.cursor()) {
+            while (cursor.next()) {
+                keys.add(cursor.getKey());
+                values.add(cursor.getValue());
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void mergesTheRunsInPathOrder() throws IOException {
+        Path tempDir = folder.newFolder().toPath();
+        List<String> keys = createKeys(1000);
+        List<Long> values = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(tempDir, 64)) {
+            for (int i = 0; i < keys.size(); i++) {
+                sorter.add(keys.get(i), keys.get(i).hashCode());
+            }
+            assertEquals(keys.size(), sorter.size());
+            assertTrue(sorter.getRunCount() > 1);
+
+            List<String> sorted = read(sorter, values);
+            Collections.sort(keys, PathComparator.INSTANCE);
+            assertEquals(keys, sorted);
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals(sorted.get(i).hashCode(), (long) values.get(i));
+            }
+        }
+        // The runs are deleted on close
+        assertEquals(0, tempDir.toFile().list().length);
+    }
+
+    @Test
+    public void sortsInMemoryWithoutRun() throws IOException {
+        List<String> keys = createKeys(50);
+        try (ExternalSorter sorter = new ExternalSorter(folder.newFolder().toPath())) {
+            for (String key : keys) {
+                sorter.add(key, 0);
+            }
+            assertEquals(0, sorter.getRunCount());
+            Collections.sort(keys, PathComparator.INSTANCE);
+            assertEquals(keys, read(sorter, new ArrayList<>()));
+        }
+    }
+}
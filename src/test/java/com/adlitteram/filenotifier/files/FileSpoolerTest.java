@@ -0,0 +1,174 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.Channel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSpoolerTest {
+
+    private static final long TIME = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private Path dbPath;
+    private int copies;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("root").toPath();
+        dbPath = folder.newFolder("db").toPath().resolve("state");
+        for (String path : new String[]{"a/f1", "a/f2", "b/g1", "c/h1"}) {
+            Path file = root.resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, new byte[1]);
+            setTime(file, 0);
+        }
+        for (String path : new String[]{"a", "b", "c", ""}) {
+            setTime(root.resolve(path), 0);
+        }
+    }
+
+    private void setTime(Path path, long offset) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(TIME + offset));
+    }
+
+    private static String path(String path) {
+        return path.replace('/', File.separatorChar);
+    }
+
+    // A database stays registered once closed, it is opened again from a copy
+    private void reopen() throws IOException {
+        DbManager.createManager(dbPath).close();
+        Path dir = folder.newFolder("copy" + copies++).toPath();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dbPath.getParent())) {
+            for (Path file : stream) {
+                Files.copy(file, dir.resolve(file.getFileName()));
+            }
+        }
+        dbPath = dir.resolve(dbPath.getFileName());
+    }
+
+    // Each spool runs on a database opened again, like at each start
+    private List<String> spool(Consumer<FileSpooler> options) throws IOException {
+        Channel channel = new Channel();
+        channel.setId("test");
+        FileSpooler spooler = new FileSpooler(channel, dbPath, 0);
+        spooler.addPath(root);
+        options.accept(spooler);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        spooler.addFileListener(object -> {
+            FileEvent event = (FileEvent) object;
+            events.add(event.getType() + " " + event.getPath());
+        });
+        spooler.run();
+        reopen();
+        Collections.sort(events);
+        return events;
+    }
+
+    // Deletes a/f1, creates b/g2 and modifies a/f2 and c/h1, the modified
+    // time of c is unchanged
+    private void change() throws IOException {
+        Files.delete(root.resolve("a/f1"));
+        Files.write(root.resolve("b/g2"), new byte[1]);
+        Files.write(root.resolve("c/h1"), new byte[2]);
+        setTime(root.resolve("a/f2"), 10000);
+        setTime(root.resolve("b/g2"), 10000);
+        setTime(root.resolve("c/h1"), 10000);
+        setTime(root.resolve("a"), 10000);
+        setTime(root.resolve("b"), 10000);
+        setTime(root.resolve("c"), 0);
+    }
+
+    // The root itself is reported with an empty path
+    private void assertCreated(List<String> events) {
+        List<String> expected = new ArrayList<>();
+        for (String path : new String[]{"", "a", "a/f1", "a/f2", "b", "b/g1", "c", "c/h1"}) {
+            expected.add("CREATE " + path(path));
+        }
+        assertEquals(expected, events);
+    }
+
+    // Spools the tree, then again unchanged and after the changes, returns the
+    // events of the last spool
+    private List<String> spoolChanges(Consumer<FileSpooler> options) throws IOException {
+        assertCreated(spool(options));
+        assertEquals(Collections.emptyList(), spool(options));
+        change();
+        return spool(options);
+    }
+
+    @Test
+    public void detectsTheChanges() throws IOException {
+        assertEquals(Arrays.asList("CREATE " + path("b/g2"), "DELETE " + path("a/f1"), "MODIFY a", "MODIFY " + path("a/f2"),
+                                   "MODIFY b", "MODIFY " + path("c/h1")), spoolChanges(spooler -> {
+        }));
+    }
+
+    @Test
+    public void detectsTheChangesInParallel() throws IOException {
+        assertEquals(Arrays.asList("CREATE " + path("b/g2"), "DELETE " + path("a/f1"), "MODIFY a", "MODIFY " + path("a/f2"),
+                                   "MODIFY b", "MODIFY " + path("c/h1")), spoolChanges(spooler -> spooler.setParallelism(4)));
+    }
+
+    // The file modified in place in c is not read again
+    @Test
+    public void skipsTheUnchangedDirectories() throws IOException {
+        assertEquals(Arrays.asList("CREATE " + path("b/g2"), "DELETE " + path("a/f1"), "MODIFY a", "MODIFY " + path("a/f2"),
+                                   "MODIFY b"), spoolChanges(spooler -> spooler.setIncremental(true)));
+    }
+
+    // The first incremental spool reads the whole tree
+    @Test
+    public void readsTheDirectoriesOfTheLastSpoolAgain() throws IOException {
+        assertCreated(spool(spooler -> {
+        }));
+        change();
+        assertEquals(Arrays.asList("CREATE " + path("b/g2"), "DELETE " + path("a/f1"), "MODIFY a", "MODIFY " + path("a/f2"),
+                                   "MODIFY b", "MODIFY " + path("c/h1")), spool(spooler -> spooler.setIncremental(true)));
+    }
+
+    // The names of c are compared: the new file is read, the modified one is not
+    @Test
+    public void readsOnlyTheNewNames() throws IOException {
+        Consumer<FileSpooler> options = spooler -> spooler.setLazyStat(true);
+        assertCreated(spool(options));
+        assertEquals(Collections.emptyList(), spool(options));
+        change();
+        Files.write(root.resolve("c/h2"), new byte[1]);
+        setTime(root.resolve("c"), 0);
+        assertEquals(Arrays.asList("CREATE " + path("b/g2"), "CREATE " + path("c/h2"), "DELETE " + path("a/f1"), "MODIFY a",
+                                   "MODIFY " + path("a/f2"), "MODIFY b"), spool(options));
+    }
+}
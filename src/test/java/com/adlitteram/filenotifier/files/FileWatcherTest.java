@@ -0,0 +1,224 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.Channel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileWatcherTest {
+
+    private static final long TIME = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private Path dbPath;
+    private final QueueBackend backend = new QueueBackend();
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private FileWatcher watcher;
+    private Thread thread;
+
+    // The events are sent by the test
+    private static class QueueBackend implements WatchBackend {
+
+        private final LinkedBlockingQueue<List<Event>> queue = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public void addRoot(Path root) {
+        }
+
+        @Override
+        public void removeRoot(Path root) {
+        }
+
+        @Override
+        public void start(PathFilter filter) {
+        }
+
+        @Override
+        public List<Event> poll(long timeout) throws InterruptedException {
+            List<Event> events = timeout < 0 ? queue.take() : queue.poll(timeout, TimeUnit.MILLISECONDS);
+            if (closed) {
+                throw new ClosedWatchServiceException();
+            }
+            return events;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.add(Collections.emptyList());
+        }
+
+        void send(Kind kind, String root, String path) {
+            queue.add(Collections.singletonList(new Event(kind, root, path)));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("root").toPath();
+        dbPath = folder.newFolder("db").toPath().resolve("state");
+        for (String path : new String[]{"a/f1", "a/f2", "a/s/g1", "b/h1"}) {
+            Path file = root.resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, new byte[1]);
+            setTime(file);
+        }
+        for (String path : new String[]{"a/s", "a", "b", ""}) {
+            setTime(root.resolve(path));
+        }
+
+        Channel channel = new Channel();
+        channel.setId("test");
+        FileSpooler spooler = new FileSpooler(channel, dbPath, 0);
+        spooler.addPath(root);
+        spooler.run();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (thread != null) {
+            watcher.interrupt();
+            thread.join(5000);
+        }
+        DbManager.createManager(dbPath).close();
+    }
+
+    private static void setTime(Path path) throws IOException {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(TIME));
+    }
+
+    private static String path(String path) {
+        return path.replace('/', File.separatorChar);
+    }
+
+    private String key(String path) {
+        return KeyCodec.toKey(root.toString(), path(path));
+    }
+
+    private void startWatcher(boolean subtreeIndex) throws IOException {
+        Channel channel = new Channel();
+        channel.setId("test");
+        watcher = new FileWatcher(channel, dbPath, backend);
+        watcher.addPath(root);
+        watcher.setSubtreeIndex(subtreeIndex);
+        watcher.addFileListener(object -> {
+            FileEvent event = (FileEvent) object;
+            events.add(event.getType() + " " + event.getPath());
+        });
+        thread = new Thread(watcher);
+        thread.start();
+    }
+
+    // Waits for the events, then for any late one
+    private List<String> awaitEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        synchronized (events) {
+            List<String> sorted = new ArrayList<>(events);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    @Test
+    public void rescansTheOverflowedSubtrees() throws IOException, InterruptedException {
+        startWatcher(false);
+        Files.delete(root.resolve("a/f1"));
+        Files.write(root.resolve("a/f3"), new byte[1]);
+        Files.write(root.resolve("a/s/g2"), new byte[1]);
+        Files.write(root.resolve("b/h2"), new byte[1]);
+        setTime(root.resolve("a"));
+        setTime(root.resolve("a/s"));
+        setTime(root.resolve("b"));
+
+        // The subtree of a/s is collapsed into the one of a, b is not rescanned
+        backend.send(WatchBackend.Kind.OVERFLOW, root.toString(), path("a/s"));
+        backend.send(WatchBackend.Kind.OVERFLOW, root.toString(), "a");
+        assertEquals(Arrays.asList("CREATE " + path("a/f3"), "CREATE " + path("a/s/g2"), "DELETE " + path("a/f1")),
+                     awaitEvents(3));
+        GenerationMap fileMap = DbManager.createManager(dbPath).getFileMap();
+        assertNull(fileMap.get(key("a/f1")));
+        assertNotNull(fileMap.get(key("a/s/g2")));
+        assertNull(fileMap.get(key("b/h2")));
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) stream.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void removesTheEntriesBelowADeletedDirectory() throws IOException, InterruptedException {
+        startWatcher(true);
+        deleteTree(root.resolve("a"));
+        backend.send(WatchBackend.Kind.DELETE, root.toString(), "a");
+        assertEquals(Arrays.asList("DELETE a"), awaitEvents(1));
+
+        GenerationMap fileMap = DbManager.createManager(dbPath).getFileMap();
+        for (String path : new String[]{"a", "a/f1", "a/f2", "a/s", "a/s/g1"}) {
+            assertNull(fileMap.get(key(path)));
+        }
+        assertNotNull(fileMap.get(key("b/h1")));
+    }
+
+    @Test
+    public void movesTheEntriesBelowARenamedDirectory() throws IOException, InterruptedException {
+        startWatcher(true);
+        Files.move(root.resolve("a"), root.resolve("c"));
+        backend.send(WatchBackend.Kind.RENAME_FROM, root.toString(), "a");
+        backend.send(WatchBackend.Kind.RENAME_TO, root.toString(), "c");
+        assertEquals(Arrays.asList("RENAME a"), awaitEvents(1));
+
+        GenerationMap fileMap = DbManager.createManager(dbPath).getFileMap();
+        for (String path : new String[]{"a", "a/f1", "a/f2", "a/s", "a/s/g1"}) {
+            assertNull(fileMap.get(key(path)));
+            String movedPath = "c" + path.substring(1);
+            assertNotNull(movedPath, fileMap.get(key(movedPath)));
+        }
+        // The stored state is moved, the children are not read again
+        assertEquals(TIME, GenerationMap.getTime(fileMap.get(key("c/s/g1"))));
+    }
+}
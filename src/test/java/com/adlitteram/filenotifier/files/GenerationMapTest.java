@@ -0,0 +1,130 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GenerationMapTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tagsTheTimeWithTheParity() {
+        GenerationMap fileMap = new GenerationMap(new HashMap<>());
+        fileMap.put("a", 1000);
+        assertEquals(1000, GenerationMap.getTime(fileMap.get("a")));
+        assertTrue(fileMap.isCurrent(fileMap.get("a")));
+
+        fileMap.setGeneration(1);
+        assertFalse(fileMap.isCurrent(fileMap.get("a")));
+        assertTrue(fileMap.touch("a"));
+        assertTrue(fileMap.isCurrent(fileMap.get("a")));
+        assertEquals(1000, GenerationMap.getTime(fileMap.get("a")));
+        assertFalse(fileMap.touch("missing"));
+
+        // Only the parity is kept: generation 2 aliases generation 0
+        fileMap.setGeneration(2);
+        fileMap.put("b", 2000);
+        fileMap.setGeneration(0);
+        assertTrue(fileMap.isCurrent(fileMap.get("b")));
+    }
+
+    @Test
+    public void keepsTheFingerprint() {
+        GenerationMap fileMap = new GenerationMap(new HashMap<>());
+        fileMap.put("a", 1000, 10, 42);
+        fileMap.setGeneration(1);
+        fileMap.touch("a");
+
+        Object value = fileMap.get("a");
+        assertTrue(GenerationMap.hasFingerprint(value));
+        assertTrue(fileMap.isCurrent(value));
+        assertEquals(1000, GenerationMap.getTime(value));
+        assertEquals(10, GenerationMap.getSize(value));
+        assertEquals(42, GenerationMap.getFileKey(value));
+
+        // No fingerprint without file key
+        fileMap.put("b", 1000, 10, 0);
+        assertFalse(GenerationMap.hasFingerprint(fileMap.get("b")));
+    }
+
+    @Test
+    public void removesTheStaleEntries() {
+        GenerationMap fileMap = new GenerationMap(new HashMap<>());
+        fileMap.put("a", 1000);
+        fileMap.put("b", 1000);
+        fileMap.setGeneration(1);
+        fileMap.touch("b");
+
+        assertEquals(1, fileMap.removeStale());
+        assertNull(fileMap.get("a"));
+        assertEquals(1000, GenerationMap.getTime(fileMap.get("b")));
+    }
+
+    @Test
+    public void touchesAllBeforeANewGeneration() {
+        GenerationMap fileMap = new GenerationMap(new HashMap<>());
+        fileMap.put("a", 1000);
+        fileMap.setGeneration(1);
+        fileMap.put("b", 1000);
+
+        // Without it "a" would be current again in generation 2
+        assertEquals(1, fileMap.touchAll());
+        fileMap.setGeneration(2);
+        assertFalse(fileMap.isCurrent(fileMap.get("a")));
+        assertFalse(fileMap.isCurrent(fileMap.get("b")));
+        assertEquals(2, fileMap.removeStale());
+    }
+
+    // The two maps of the previous format: the one marked 0 holds the last spool
+    @Test
+    public void upgradesTheSwappedMaps() throws IOException {
+        Path dbPath = folder.newFolder("db").toPath().resolve("state");
+        MapDbStore store = new MapDbStore(dbPath);
+        Map<String, Long> map1 = store.getMap("map1");
+        Map<String, Long> map2 = store.getMap("map2");
+        map1.put("*", 0L);
+        map1.put("a", 1000L);
+        map2.put("*", 1L);
+        map2.put("b", 2000L);
+        store.commit();
+        store.close();
+
+        DbManager dbManager = DbManager.createManager(dbPath);
+        GenerationMap fileMap = dbManager.getFileMap();
+        assertEquals(1, fileMap.size());
+        assertEquals(1000, GenerationMap.getTime(fileMap.get("a")));
+        assertNull(fileMap.get("*"));
+        assertNull(fileMap.get("b"));
+        dbManager.close();
+
+        store = new MapDbStore(dbPath);
+        assertFalse(store.exists("map1"));
+        assertFalse(store.exists("map2"));
+        store.close();
+    }
+}
@@ -0,0 +1,108 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GroupCommitterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DbManager dbManager;
+
+    @Before
+    public void setUp() throws IOException {
+        dbManager = DbManager.createManager(folder.newFolder("db").toPath().resolve("state"));
+    }
+
+    @After
+    public void tearDown() {
+        dbManager.close();
+    }
+
+    private static void awaitCommits(GroupCommitter committer, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (committer.getCommitCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, committer.getCommitCount());
+    }
+
+    @Test
+    public void commitsAfterTheDelay() throws InterruptedException {
+        GroupCommitter committer = new GroupCommitter(dbManager, "test", 200, 0);
+        committer.start();
+        long startTime = System.currentTimeMillis();
+        committer.updated(1);
+        committer.updated(1);
+        awaitCommits(committer, 1);
+        assertTrue(System.currentTimeMillis() - startTime >= 200);
+
+        committer.close();
+        assertEquals(1, committer.getCommitCount());
+    }
+
+    @Test
+    public void commitsAtTheCount() throws InterruptedException {
+        GroupCommitter committer = new GroupCommitter(dbManager, "test", 60000, 10);
+        committer.start();
+        committer.updated(4);
+        committer.updated(6);
+        awaitCommits(committer, 1);
+
+        // The last updates are committed by the close
+        committer.updated(1);
+        committer.close();
+        assertEquals(2, committer.getCommitCount());
+    }
+
+    @Test
+    public void waitsUntilTheUpdatesAreTaken() throws InterruptedException {
+        GroupCommitter committer = new GroupCommitter(dbManager, "test", 60000, 2);
+        committer.updated(2);
+        Thread updater = new Thread(() -> committer.updated(1));
+        updater.start();
+        updater.join(200);
+        assertTrue(updater.isAlive());
+
+        committer.start();
+        updater.join(5000);
+        assertFalse(updater.isAlive());
+        committer.close();
+        assertEquals(2, committer.getCommitCount());
+    }
+
+    @Test
+    public void flushCommitsInTheCaller() {
+        GroupCommitter committer = new GroupCommitter(dbManager, "test", 60000, 0);
+        committer.start();
+        committer.updated(1);
+        committer.flush();
+        assertEquals(1, committer.getCommitCount());
+
+        committer.close();
+        assertEquals(1, committer.getCommitCount());
+    }
+}
@@ -0,0 +1,105 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JdkWatchBackendTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LinkedBlockingQueue<List<WatchBackend.Event>> polls = new LinkedBlockingQueue<>();
+
+    // Polls the backend as the intake thread does
+    private Thread startIntake(WatchBackend backend) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    List<WatchBackend.Event> events = backend.poll(-1);
+                    if (events != null) {
+                        polls.add(events);
+                    }
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException ex) {
+                // Closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static boolean contains(List<WatchBackend.Event> events, WatchBackend.Kind kind, String path) {
+        for (WatchBackend.Event event : events) {
+            if (event.getKind() == kind && event.getPath().equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void scansTheDirectoriesPolledAfterTheStart() throws IOException, InterruptedException {
+        Path root = folder.newFolder("root").toPath();
+        WatchBudget budget = new WatchBudget();
+        budget.configure(1, 1);
+        JdkWatchBackend backend = new JdkWatchBackend(budget);
+        backend.addRoot(root);
+        backend.start(new PathFilter(null, null));
+        Thread intake = startIntake(backend);
+
+        try {
+            Path dir = Files.createDirectory(root.resolve("a"));
+            List<WatchBackend.Event> events = polls.poll(5, TimeUnit.SECONDS);
+            assertNotNull(events);
+            assertTrue(contains(events, WatchBackend.Kind.CREATE, "a"));
+
+            // Walked by a rescan of the watcher while the intake thread waits:
+            // the budget is used by the root, the directory is polled
+            backend.visited(root, dir, Files.readAttributes(dir, BasicFileAttributes.class));
+            Thread.sleep(50);
+            Files.createFile(dir.resolve("f"));
+
+            boolean scanned = false;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!scanned && System.currentTimeMillis() < deadline) {
+                events = polls.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (events != null) {
+                    scanned = contains(backend.process(events), WatchBackend.Kind.OVERFLOW, "a");
+                }
+            }
+            assertTrue(scanned);
+        }
+        finally {
+            backend.close();
+            intake.join(5000);
+        }
+    }
+}
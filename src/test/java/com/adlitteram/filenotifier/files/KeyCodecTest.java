@@ -0,0 +1,100 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KeyCodecTest {
+
+    private static final String ROOT = File.separator + "root";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void buildsTheKeyBelowTheRoot() {
+        String relative = "dir" + File.separator + "a";
+        String key = KeyCodec.toKey(ROOT, relative);
+        assertEquals(ROOT + File.separator + relative, key);
+        assertEquals(relative, KeyCodec.relativize(ROOT, key));
+        // A root ending with a separator, and the root itself
+        assertEquals(key, KeyCodec.toKey(ROOT + File.separator, relative));
+        assertEquals(relative, KeyCodec.relativize(ROOT + File.separator, key));
+        assertEquals(ROOT, KeyCodec.toKey(ROOT, ""));
+        assertEquals("", KeyCodec.relativize(ROOT, ROOT));
+    }
+
+    // A database written before the keys were unified: no key format in the meta map
+    private Path createDatabase(Object... entries) throws IOException {
+        Path dbPath = folder.newFolder("db").toPath().resolve("state");
+        MapDbStore store = new MapDbStore(dbPath);
+        Map<String, Object> files = store.getMap("files");
+        for (int i = 0; i < entries.length; i += 2) {
+            files.put((String) entries[i], GenerationMap.encode((Long) entries[i + 1], 0));
+        }
+        store.commit();
+        store.close();
+        return dbPath;
+    }
+
+    @Test
+    public void migratesTheRelativeKeys() throws IOException {
+        Path root = folder.newFolder("root").toPath();
+        String b = KeyCodec.toKey(root.toString(), "b");
+        Path dbPath = createDatabase("a", 1000L, "b", 1000L, b, 2000L);
+
+        DbManager dbManager = DbManager.createManager(dbPath);
+        dbManager.migrateKeys(Collections.singletonList(root));
+        GenerationMap fileMap = dbManager.getFileMap();
+        assertEquals(2, fileMap.size());
+        assertEquals(1000, GenerationMap.getTime(fileMap.get(KeyCodec.toKey(root.toString(), "a"))));
+        // The entry updated by the spooler is kept
+        assertEquals(2000, GenerationMap.getTime(fileMap.get(b)));
+        assertNull(fileMap.get("a"));
+
+        // Migrated once
+        fileMap.put("c", 3000);
+        dbManager.migrateKeys(Collections.singletonList(root));
+        assertEquals(3000, GenerationMap.getTime(fileMap.get("c")));
+        dbManager.close();
+    }
+
+    @Test
+    public void migratesToTheRootWhereTheFileExists() throws IOException {
+        Path root1 = folder.newFolder("root1").toPath();
+        Path root2 = folder.newFolder("root2").toPath();
+        Files.createFile(root2.resolve("a"));
+        Path dbPath = createDatabase("a", 1000L, "missing", 1000L);
+
+        DbManager dbManager = DbManager.createManager(dbPath);
+        dbManager.migrateKeys(Arrays.asList(root1, root2));
+        GenerationMap fileMap = dbManager.getFileMap();
+        assertEquals(1, fileMap.size());
+        assertEquals(1000, GenerationMap.getTime(fileMap.get(KeyCodec.toKey(root2.toString(), "a"))));
+        dbManager.close();
+    }
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.Fun;
+
+public class LogStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Path getSegment(Path dir) {
+        return dir.resolve(String.format("%016x", 1) + ".seg");
+    }
+
+    // Returns the offsets of the records of a segment, then the offset of its end
+    private static long[] getOffsets(Path segment) throws IOException {
+        try (FileChannel fc = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            long[] offsets = new long[0];
+            int length;
+            do {
+                offsets = Arrays.copyOf(offsets, offsets.length + 1);
+                offsets[offsets.length - 1] = buffer.position();
+                length = buffer.getInt(buffer.position());
+                buffer.position(buffer.position() + 8 + Math.max(length, 0));
+            }
+            while (length > 0);
+            return offsets;
+        }
+    }
+
+    private static void writeInt(Path segment, long offset, int value) throws IOException {
+        try (FileChannel fc = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(value).flip();
+            fc.write(buffer, offset);
+        }
+    }
+
+    @Test
+    public void replaysUpToAnInvalidLength() throws IOException {
+        Path dir = folder.newFolder("log").toPath();
+        LogStore store = new LogStore(dir);
+        Map<String, long[]> map = store.getMap("files");
+        map.put("a", new long[]{1, 2});
+        map.put("b", new long[]{3});
+        store.commit();
+        store.close();
+
+        // A length larger than the segment after the last record
+        long[] offsets = getOffsets(getSegment(dir));
+        writeInt(getSegment(dir), offsets[offsets.length - 1], Integer.MAX_VALUE);
+
+        store = new LogStore(dir);
+        map = store.getMap("files");
+        assertEquals(2, map.size());
+        assertArrayEquals(new long[]{1, 2}, map.get("a"));
+        assertArrayEquals(new long[]{3}, map.get("b"));
+
+        // The torn tail is cleared, the new records are replayed
+        map.put("c", new long[]{4});
+        store.commit();
+        store.close();
+
+        store = new LogStore(dir);
+        map = store.getMap("files");
+        assertEquals(3, map.size());
+        assertArrayEquals(new long[]{4}, map.get("c"));
+        store.close();
+    }
+
+    @Test
+    public void discardsTheChangesOfATornCommit() throws IOException {
+        Path dir = folder.newFolder("log").toPath();
+        LogStore store = new LogStore(dir);
+        Map<String, Long> map = store.getMap("files");
+        map.put("a", 1L);
+        store.commit();
+        map.put("b", 2L);
+        map.remove("a");
+        store.commit();
+        store.close();
+
+        // Corrupts the CRC of the last commit record
+        long[] offsets = getOffsets(getSegment(dir));
+        writeInt(getSegment(dir), offsets[offsets.length - 2] + 4, 0);
+
+        store = new LogStore(dir);
+        map = store.getMap("files");
+        assertEquals(1, map.size());
+        assertEquals(Long.valueOf(1), map.get("a"));
+        assertFalse(map.containsKey("b"));
+        store.close();
+    }
+
+    @Test
+    public void encodesTheValues() throws IOException {
+        Object[] values = {null, "key", 1L, 2, true, new long[]{5, 6}, Fun.t2(7L, "name")};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Object value : values) {
+            LogCodec.write(out, value);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (Object value : values) {
+            Object read = LogCodec.read(in);
+            if (value instanceof long[]) {
+                assertArrayEquals((long[]) value, (long[]) read);
+            }
+            else {
+                assertEquals(value, read);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsAnInvalidArrayLength() {
+        byte[] bytes = {5, (byte) 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        try {
+            LogCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+            fail();
+        }
+        catch (IOException ex) {
+            // Expected, the array is not allocated
+        }
+    }
+}
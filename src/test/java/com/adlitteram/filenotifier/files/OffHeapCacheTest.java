@@ -0,0 +1,115 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.util.HashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class OffHeapCacheTest {
+
+    private final long[] value = new long[1];
+
+    @Test
+    public void cachesTheValues() {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("a", 3);
+
+        assertTrue(cache.get("a", value));
+        assertEquals(3, value[0]);
+        assertTrue(cache.get("b", value));
+        assertEquals(2, value[0]);
+        assertFalse(cache.get("c", value));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.remove("a");
+        assertFalse(cache.get("a", value));
+        cache.clear();
+        assertFalse(cache.get("b", value));
+    }
+
+    @Test
+    public void sizesTheSlotsToAPowerOfTwo() {
+        // At least one window of 8 slots, 24 bytes each
+        assertEquals(8, new OffHeapCache(0).capacity());
+        assertEquals(512, new OffHeapCache(1000 * 24).capacity());
+        assertTrue(OffHeapCache.getMaxDirectMemory() > 0);
+    }
+
+    @Test
+    public void evictsTheEntriesNotReferenced() {
+        // A single window: every key competes for the same 8 slots
+        OffHeapCache cache = new OffHeapCache(0);
+        for (int i = 0; i < 8; i++) {
+            cache.put("k" + i, i);
+        }
+        for (int i = 0; i < 8; i++) {
+            assertTrue(cache.get("k" + i, value));
+        }
+
+        // The clock clears the reference bits, then evicts one entry
+        cache.put("k8", 8);
+        String read = null;
+        for (int i = 0; read == null; i++) {
+            if (cache.get("k" + i, value)) {
+                read = "k" + i;
+            }
+        }
+
+        // The entries referenced since then are kept
+        cache.put("k9", 9);
+        assertTrue(cache.get(read, value));
+        assertTrue(cache.get("k8", value));
+        assertTrue(cache.get("k9", value));
+        int count = 0;
+        for (int i = 0; i < 8; i++) {
+            if (cache.get("k" + i, value)) {
+                count++;
+            }
+        }
+        assertEquals(6, count);
+    }
+
+    @Test
+    public void readsThroughTheCache() {
+        HashMap<String, Object> store = new HashMap<>();
+        store.put("a", 1L);
+        CachedMap map = new CachedMap(store, 1024 * 1024);
+        assertEquals(1L, map.get("a"));
+
+        // The writes are held until flushed
+        map.put("a", 2L);
+        map.put("b", 3L);
+        map.remove("c");
+        assertEquals(2L, map.get("a"));
+        assertEquals(1L, store.get("a"));
+        map.flush();
+        assertEquals(2L, store.get("a"));
+        assertEquals(3L, store.get("b"));
+
+        // A held removal hides the stored value
+        map.remove("b");
+        assertNull(map.get("b"));
+        assertEquals(1, map.size());
+        assertFalse(store.containsKey("b"));
+    }
+}
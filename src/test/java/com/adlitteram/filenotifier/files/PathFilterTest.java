@@ -0,0 +1,72 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.util.regex.Pattern;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class PathFilterTest {
+
+    private static String path(String... names) {
+        return String.join(File.separator, names);
+    }
+
+    @Test
+    public void appliesTheIncludesToTheFilesOnly() {
+        PathFilter filter = new PathFilter(Pattern.compile(".*\\.txt"), Pattern.compile("~.*"));
+        assertTrue(filter.accept("a.txt", false));
+        assertFalse(filter.accept("a.doc", false));
+        assertTrue(filter.accept("dir", true));
+        assertFalse(filter.accept("~a.txt", false));
+        assertFalse(filter.accept("~dir", true));
+        assertFalse(filter.hasDirectoryRules());
+    }
+
+    @Test
+    public void excludesTheDirectoryByNameOrPath() {
+        PathFilter filter = new PathFilter(null, null, Pattern.compile("\\.git|build/tmp"), 0);
+        assertTrue(filter.hasDirectoryRules());
+        assertFalse(filter.acceptDirectory(".git", path("src", ".git")));
+        assertFalse(filter.acceptDirectory("tmp", path("build", "tmp")));
+        assertTrue(filter.acceptDirectory("tmp", path("src", "tmp")));
+
+        // The relative paths of the entries below an excluded directory
+        assertFalse(filter.acceptRelative(path("src", ".git", "config"), false));
+        assertFalse(filter.acceptRelative(path("build", "tmp", "a", "b"), false));
+        assertFalse(filter.acceptRelative(path("build", "tmp"), true));
+        assertTrue(filter.acceptRelative(path("build", "tmp"), false));
+        assertTrue(filter.acceptRelative(path("src", "tmp", "a"), false));
+        assertTrue(filter.acceptRelative("", true));
+    }
+
+    @Test
+    public void limitsTheDepth() {
+        PathFilter filter = new PathFilter(null, null, null, 2);
+        assertTrue(filter.hasDirectoryRules());
+        assertTrue(filter.acceptDepth(2));
+        assertFalse(filter.acceptDepth(3));
+        assertTrue(filter.acceptRelative(path("a", "b"), false));
+        assertFalse(filter.acceptRelative(path("a", "b", "c"), false));
+
+        // A negative depth means no limit
+        filter = new PathFilter(null, null, null, -1);
+        assertFalse(filter.hasDirectoryRules());
+        assertTrue(filter.acceptRelative(path("a", "b", "c", "d"), false));
+    }
+}
@@ -0,0 +1,102 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.junit.Before;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.mapdb.Fun;
+
+public class PathKeyMapTest {
+
+    private static final String DIR = File.separator + "root" + File.separator + "dir" + File.separator;
+
+    private HashMap<Fun.Tuple2<Long, String>, Long> store;
+    private HashMap<String, Long> ids;
+    private HashMap<Long, String> paths;
+    private PathKeyMap.Directories directories;
+    private PathKeyMap<Long> map;
+
+    @Before
+    public void setUp() {
+        store = new HashMap<>();
+        ids = new HashMap<>();
+        paths = new HashMap<>();
+        directories = new PathKeyMap.Directories(ids, paths);
+        map = new PathKeyMap<>(store, directories);
+    }
+
+    @Test
+    public void storesTheParentOnce() {
+        map.put(DIR + "a", 1L);
+        map.put(DIR + "b", 2L);
+        map.put("name", 3L);
+
+        assertEquals(1, directories.size());
+        assertEquals(Long.valueOf(1), map.get(DIR + "a"));
+        assertEquals(Long.valueOf(2), map.get(DIR + "b"));
+        // A key without separator has the empty parent
+        assertEquals(Long.valueOf(3), map.get("name"));
+        assertTrue(store.containsKey(Fun.t2(0L, "name")));
+    }
+
+    @Test
+    public void unknownParentIsNotCreated() {
+        assertNull(map.get(DIR + "missing"));
+        assertFalse(map.containsKey(DIR + "missing"));
+        assertNull(map.remove(DIR + "missing"));
+        assertEquals(0, directories.size());
+    }
+
+    @Test
+    public void iteratesOnTheFullPaths() {
+        map.put(DIR + "a", 1L);
+        map.put(DIR + "sub" + File.separator + "b", 2L);
+
+        HashMap<String, Long> copy = new HashMap<>();
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(2, copy.size());
+        assertEquals(Long.valueOf(1), copy.get(DIR + "a"));
+        assertEquals(Long.valueOf(2), copy.get(DIR + "sub" + File.separator + "b"));
+    }
+
+    @Test
+    public void retainsTheUsedDirectories() {
+        map.put(DIR + "a", 1L);
+        map.put(DIR + "sub" + File.separator + "b", 2L);
+        map.remove(DIR + "sub" + File.separator + "b");
+
+        HashSet<Long> usedIds = new HashSet<>();
+        map.collectDirectoryIds(usedIds);
+        assertEquals(1, directories.retain(usedIds));
+        assertEquals(1, directories.size());
+        assertEquals(Long.valueOf(1), map.get(DIR + "a"));
+
+        // A table reloaded from the store gives the ids after the last one kept
+        PathKeyMap.Directories reloaded = new PathKeyMap.Directories(ids, paths);
+        assertEquals(directories.getId(DIR, false), reloaded.getId(DIR, false));
+        assertEquals(Long.valueOf(2), reloaded.getId(DIR + "new" + File.separator, true));
+    }
+}
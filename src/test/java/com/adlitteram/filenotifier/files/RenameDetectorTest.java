@@ -0,0 +1,112 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListenerPool;
+import com.adlitteram.filenotifier.Channel;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class RenameDetectorTest {
+
+    private static final String ROOT = File.separator + "root";
+
+    private final List<String> events = new ArrayList<>();
+    private final GenerationMap fileMap = new GenerationMap(new HashMap<>());
+
+    private RenameDetector createDetector(PathFilter filter, long maxMemory) {
+        Channel channel = new Channel();
+        channel.setId("test");
+        ChangeListenerPool<Object> listeners = new ChangeListenerPool<>();
+        listeners.addListener(object -> {
+            FileEvent event = (FileEvent) object;
+            events.add(event.getType() + " " + event.getPath() + (event.getRpath() != null ? " " + event.getRpath() : ""));
+        });
+        List<Path> rootPaths = Collections.singletonList(Paths.get(ROOT));
+        return new RenameDetector(channel, listeners, rootPaths, filter, maxMemory);
+    }
+
+    private static String key(String path) {
+        return KeyCodec.toKey(ROOT, path);
+    }
+
+    // The stored value of a stale entry
+    private Object stale(String path, long time, long size, long fileKey) {
+        String key = key(path);
+        fileMap.put(key, time, size, fileKey);
+        return fileMap.get(key);
+    }
+
+    @Test
+    public void matchesTheFingerprint() {
+        RenameDetector detector = createDetector(new PathFilter(null, null), 1 << 20);
+        assertTrue(detector.add(ROOT, "b", 1000, 10, 42, false, true));
+        assertTrue(detector.add(ROOT, "d", 1000, 10, 43, false, true));
+        assertTrue(detector.add(ROOT, "e", 1000, 10, 44, false, false));
+        // No file key, reported as created by the caller
+        assertFalse(detector.add(ROOT, "f", 1000, 10, 0, false, true));
+
+        assertTrue(detector.match(key("a"), stale("a", 1000, 10, 42)));
+        // Same file key but another size: the key has been reused
+        assertFalse(detector.match(key("c"), stale("c", 1000, 11, 43)));
+        // Matched once
+        assertFalse(detector.match(key("a2"), stale("a2", 1000, 10, 42)));
+        // No fingerprint
+        fileMap.put(key("g"), 1000);
+        assertFalse(detector.match(key("g"), fileMap.get(key("g"))));
+        detector.complete();
+
+        // The entry older than the retain time is not reported
+        assertEquals(Arrays.asList("RENAME a b", "CREATE d"), events);
+    }
+
+    @Test
+    public void skipsTheKeysBelowAnExcludedDirectory() {
+        PathFilter filter = new PathFilter(null, null, Pattern.compile("tmp"), 0);
+        RenameDetector detector = createDetector(filter, 1 << 20);
+        detector.add(ROOT, "b", 1000, 10, 42, false, true);
+
+        String path = "tmp" + File.separator + "a";
+        assertFalse(detector.match(key(path), stale(path, 1000, 10, 42)));
+        detector.complete();
+        assertEquals(Arrays.asList("CREATE b"), events);
+    }
+
+    @Test
+    public void holdsTheEntriesUpToTheMemory() {
+        // Room for a single entry
+        RenameDetector detector = createDetector(new PathFilter(null, null), 200);
+        assertTrue(detector.add(ROOT, "b", 1000, 10, 42, false, true));
+        assertFalse(detector.add(ROOT, "d", 1000, 10, 43, false, true));
+        assertFalse(detector.match(key("c"), stale("c", 1000, 10, 43)));
+        detector.flush();
+        assertEquals(Arrays.asList("CREATE b"), events);
+
+        // The memory is released by the flush
+        assertTrue(detector.add(ROOT, "d", 1000, 10, 43, false, true));
+    }
+}
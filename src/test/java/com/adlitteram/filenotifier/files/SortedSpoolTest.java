@@ -0,0 +1,105 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import com.adlitteram.filenotifier.ChangeListenerPool;
+import com.adlitteram.filenotifier.Channel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SortedSpoolTest {
+
+    private static final Path ROOT = Paths.get(File.separator + "root");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Records the keys read and written by the merge
+    private static class RecordingMap extends HashMap<String, Object> {
+
+        private final List<Object> reads = new ArrayList<>();
+        private final List<String> writes = new ArrayList<>();
+
+        @Override
+        public Object get(Object key) {
+            reads.add(key);
+            return super.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            writes.add(key);
+            return super.put(key, value);
+        }
+    }
+
+    private static String key(String path) {
+        return KeyCodec.toKey(ROOT.toString(), path);
+    }
+
+    @Test
+    public void writesOnlyTheChangedEntries() throws IOException {
+        RecordingMap map = new RecordingMap();
+        GenerationMap fileMap = new GenerationMap(map);
+        for (String path : new String[]{"a", "b", "c"}) {
+            fileMap.put(key(path), 1000);
+        }
+        fileMap.setGeneration(1);
+        map.writes.clear();
+
+        Channel channel = new Channel();
+        channel.setId("test");
+        List<String> events = new ArrayList<>();
+        ChangeListenerPool<Object> listeners = new ChangeListenerPool<>();
+        listeners.addListener(event -> events.add(((FileEvent) event).getType() + " " + ((FileEvent) event).getPath()));
+
+        SortedSpool spool = new SortedSpool(channel, listeners, Collections.singletonList(ROOT), new PathFilter(null, null), 0,
+                                            folder.getRoot().toPath());
+        spool.getWalkSorter().add(key("a"), 1000);
+        spool.getWalkSorter().add(key("b"), 2000);
+        spool.getWalkSorter().add(key("d"), 3000);
+        spool.merge(fileMap, new HashMap<>());
+        spool.close();
+
+        Collections.sort(events);
+        assertEquals(Arrays.asList("CREATE d", "DELETE c", "MODIFY b"), events);
+        // The merge only reads the deleted key, the unchanged one is rewritten
+        // by the pass over the map
+        assertEquals(Arrays.asList(key("c")), map.reads);
+        assertEquals(Arrays.asList(key("b"), key("d"), key("a")), map.writes);
+
+        assertNull(fileMap.get(key("c")));
+        assertEquals(3, fileMap.size());
+        assertEquals(1000, GenerationMap.getTime(fileMap.get(key("a"))));
+        assertEquals(2000, GenerationMap.getTime(fileMap.get(key("b"))));
+        for (Object value : map.values()) {
+            assertTrue(fileMap.isCurrent(value));
+        }
+    }
+}
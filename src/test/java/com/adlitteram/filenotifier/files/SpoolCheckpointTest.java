@@ -0,0 +1,86 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int copies;
+
+    // A database stays registered once closed, it is opened again from a copy
+    private Path reopen(Path dbPath) throws IOException {
+        Path dir = folder.newFolder("copy" + copies++).toPath();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dbPath.getParent())) {
+            for (Path file : stream) {
+                Files.copy(file, dir.resolve(file.getFileName()));
+            }
+        }
+        return dir.resolve(dbPath.getFileName());
+    }
+
+    @Test
+    public void resumesAnInterruptedSpool() throws IOException {
+        Path dbPath = folder.newFolder("db").toPath().resolve("state");
+        DbManager dbManager = DbManager.createManager(dbPath);
+        SpoolCheckpoint checkpoint = dbManager.getCheckpoint();
+        assertFalse(checkpoint.isResumed());
+        checkpoint.start();
+        assertEquals(1, checkpoint.getCurGeneration());
+        dbManager.getFileMap().put("a", 1000);
+        checkpoint.done("dir1");
+        dbManager.commit();
+        dbManager.close();
+
+        dbPath = reopen(dbPath);
+        dbManager = DbManager.createManager(dbPath);
+        checkpoint = dbManager.getCheckpoint();
+        assertTrue(checkpoint.isResumed());
+        assertEquals("dir1", checkpoint.getLastDir());
+        assertTrue(checkpoint.isDone("dir1"));
+        assertFalse(checkpoint.isDone("dir2"));
+        // The resumed spool keeps its generation
+        checkpoint.start();
+        assertEquals(1, checkpoint.getCurGeneration());
+        assertTrue(dbManager.getFileMap().isCurrent(dbManager.getFileMap().get("a")));
+        checkpoint.complete();
+        dbManager.commit();
+        dbManager.close();
+
+        dbPath = reopen(dbPath);
+        dbManager = DbManager.createManager(dbPath);
+        checkpoint = dbManager.getCheckpoint();
+        assertFalse(checkpoint.isResumed());
+        checkpoint.start();
+        assertEquals(1, checkpoint.getOldGeneration());
+        assertEquals(2, checkpoint.getCurGeneration());
+        assertFalse(checkpoint.isDone("dir1"));
+        assertFalse(dbManager.getFileMap().isCurrent(dbManager.getFileMap().get("a")));
+        dbManager.close();
+    }
+}
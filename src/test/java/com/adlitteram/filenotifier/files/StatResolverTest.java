@@ -0,0 +1,74 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StatResolverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheBatchInParallel() throws IOException, InterruptedException {
+        Path root = folder.getRoot().toPath();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Path file = root.resolve("f" + i);
+            Files.write(file, new byte[i]);
+            keys.add(file.toString());
+        }
+        String missing = root.resolve("missing").toString();
+        keys.add(missing);
+        // Not a valid path: left to the inline stat
+        String invalid = root.resolve("a").toString() + "\u0000";
+        keys.add(invalid);
+
+        StatResolver resolver = new StatResolver("test", 4);
+        try {
+            Map<String, BasicFileAttributes> attributes = resolver.resolve(keys);
+            assertEquals(11, attributes.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, attributes.get(keys.get(i)).size());
+            }
+            assertTrue(attributes.containsKey(missing));
+            assertNull(attributes.get(missing));
+            assertFalse(attributes.containsKey(invalid));
+
+            // A single key is read in the caller thread
+            attributes = resolver.resolve(Collections.singletonList(keys.get(3)));
+            assertEquals(1, attributes.size());
+            assertEquals(3, attributes.get(keys.get(3)).size());
+        }
+        finally {
+            resolver.close();
+        }
+    }
+}
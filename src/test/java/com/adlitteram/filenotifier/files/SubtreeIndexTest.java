@@ -0,0 +1,126 @@
+/* 
+ * Copyright 2017 Emmanuel Deviller.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.adlitteram.filenotifier.files;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubtreeIndexTest {
+
+    private SubtreeIndex index;
+
+    @Before
+    public void setUp() {
+        index = new SubtreeIndex();
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+    }
+
+    private static String key(String path) {
+        return File.separator + "root" + File.separator + path.replace('/', File.separatorChar);
+    }
+
+    private static List<String> keys(String... paths) {
+        List<String> keys = new ArrayList<>();
+        for (String path : paths) {
+            keys.add(key(path));
+        }
+        return keys;
+    }
+
+    private static List<String> toList(Iterator<String> iterator) {
+        List<String> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+
+    @Test
+    public void listsTheDescendantsParentsFirst() {
+        for (String key : keys("a/y", "a", "ab", "a-b", "a/x/z", "a/x", "b")) {
+            assertTrue(index.add(key));
+        }
+        index.add(key("a"));
+        assertEquals(7, index.size());
+
+        // The siblings sorting next to the directory are not below it
+        assertEquals(keys("a/x", "a/x/z", "a/y"), toList(index.descendants(key("a"))));
+        assertTrue(index.hasChildren(key("a")));
+        assertFalse(index.hasChildren(key("a-b")));
+        assertFalse(index.hasChildren(key("b")));
+    }
+
+    @Test
+    public void removesTheDescendantsByBatches() {
+        for (String key : keys("a", "a/1", "a/2", "a/3", "a/3/4", "b")) {
+            index.add(key);
+        }
+        assertEquals(keys("a/1", "a/2"), index.removeDescendants(key("a"), 2));
+        assertEquals(keys("a/3", "a/3/4"), index.removeDescendants(key("a"), 2));
+        assertTrue(index.removeDescendants(key("a"), 2).isEmpty());
+        assertEquals(2, index.size());
+
+        // Removed by the iterator
+        index.add(key("b/1"));
+        index.add(key("b/2"));
+        Iterator<String> iterator = index.descendants(key("b"));
+        iterator.next();
+        iterator.remove();
+        assertEquals(keys("b/2"), toList(index.descendants(key("b"))));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void closesOnceFull() {
+        index.close();
+        index = new SubtreeIndex(1000);
+        int count = 0;
+        while (index.add(key("f" + count))) {
+            count++;
+        }
+        assertTrue(count > 0);
+        assertTrue(index.getBytes() <= 1000);
+        // Closed, the next keys are refused
+        assertFalse(index.add(key("g")));
+    }
+
+    @Test
+    public void keepsTheMovedKeys() {
+        for (String key : keys("a", "a/x", "a/x/y")) {
+            index.add(key);
+        }
+        // As the watcher moves a renamed directory
+        index.remove(key("a"));
+        index.add(key("c"));
+        for (String key : index.removeDescendants(key("a"), Integer.MAX_VALUE)) {
+            index.add(key("c") + key.substring(key("a").length()));
+        }
+        assertEquals(keys("c/x", "c/x/y"), toList(index.descendants(key("c"))));
+        assertFalse(index.hasChildren(key("a")));
+        assertEquals(3, index.size());
+    }
+}